@@ -0,0 +1,69 @@
+package de.angermueller.factorio.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.socket.BinaryMessage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a broadcast metric for the sessions: packing and serialising it into the JSON text frame, and the binary
+ * frame of a session that already received the previous metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebSocketPackBenchmark {
+
+    private static final int METRIC_VARIANTS = 20;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"100", "1000", "5000"})
+    private int itemCount;
+
+    private WebSocketHandler handler;
+    private final FactorioMetric[] metrics = new FactorioMetric[METRIC_VARIANTS];
+    private BinaryMetricEncoder encoder;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        handler = new WebSocketHandler(List.of());
+        final int[] itemIds = new int[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            itemIds[i] = ItemRegistry.idOf("item-" + i);
+        }
+        // Every metric changes a twentieth of the items against the previous one
+        for (int m = 0; m < METRIC_VARIANTS; m++) {
+            final long[] consumed = new long[itemCount];
+            final long[] produced = new long[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                consumed[i] = 1000L * i + (i % METRIC_VARIANTS == m ? m : 0L);
+                produced[i] = 2000L * i;
+            }
+            metrics[m] = new FactorioMetric(60L * m, itemIds, consumed, produced);
+        }
+        encoder = new BinaryMetricEncoder();
+        encoder.encode("benchmark", "seconds", List.of(metrics[0]));
+    }
+
+    @Benchmark
+    public String packJson() throws JsonProcessingException {
+        final FactorioMetric metric = metrics[next++ % METRIC_VARIANTS];
+        return MAPPER.writeValueAsString(new WebSocketHandler.Metrics("benchmark", "seconds", List.of(handler.pack(metric))));
+    }
+
+    @Benchmark
+    public BinaryMessage encodeBinary() {
+        final FactorioMetric metric = metrics[next++ % METRIC_VARIANTS];
+        return encoder.encode("benchmark", "seconds", List.of(metric));
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.Application;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregation of samples into buckets and the rollup through all resolutions on every stored sample, without any
+ * storage behind it. The repository starts at the given uptime and keeps going from there, one sample per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+    private static final int SAMPLES_PER_BUCKET = 60;
+    private static final int SAMPLE_VARIANTS = 64;
+
+    @Param({"100", "1000", "5000"})
+    private int itemCount;
+
+    @Param({"max", "mean", "rate_per_second"})
+    private String aggregator;
+
+    @Param({"0", "1000"})
+    private long uptimeHours;
+
+    private int[] itemIds;
+    private long[][] consumed;
+    private long[][] produced;
+    private FactorioMetric[] samples;
+    private Aggregator bucketAggregator;
+    private final BucketAccumulator accumulator = new BucketAccumulator();
+    private final BucketAccumulator coarser = new BucketAccumulator();
+    private SQLFactorioTimeSeriesRepositoryImpl repository;
+    private long gameTick;
+    private int next;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        itemIds = new int[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            itemIds[i] = ItemRegistry.idOf("item-" + i);
+        }
+        consumed = new long[SAMPLE_VARIANTS][itemCount];
+        produced = new long[SAMPLE_VARIANTS][itemCount];
+        samples = new FactorioMetric[SAMPLE_VARIANTS];
+        for (int s = 0; s < SAMPLE_VARIANTS; s++) {
+            for (int i = 0; i < itemCount; i++) {
+                consumed[s][i] = 1000L * i + 7L * s;
+                produced[s][i] = 2000L * i + 11L * s;
+            }
+            samples[s] = new FactorioMetric(0L, itemIds, consumed[s], produced[s]);
+        }
+        bucketAggregator = Aggregators.of(aggregator);
+        gameTick = uptimeHours * 60L * 60L * 60L;
+        repository = new NoStorageRepository();
+        repository.setWriteBehind(false);
+        repository.setDefaultAggregator(bucketAggregator);
+        repository.init();
+    }
+
+    /**
+     * Fills a bucket of a minute of samples, aggregates it and rolls it up into the next coarser bucket.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES_PER_BUCKET)
+    public FactorioMetric closeBucket() {
+        for (int s = 0; s < SAMPLES_PER_BUCKET; s++) {
+            accumulator.add(samples[s % SAMPLE_VARIANTS]);
+        }
+        final FactorioMetric metric = accumulator.aggregate(0L, bucketAggregator, SAMPLES_PER_BUCKET * 60L);
+        coarser.merge(accumulator);
+        accumulator.reset();
+        return metric;
+    }
+
+    @Benchmark
+    public void store() {
+        final int s = next++ % SAMPLE_VARIANTS;
+        gameTick += 60L;
+        repository.store(new FactorioMetric(gameTick, itemIds, consumed[s], produced[s]));
+    }
+
+    /**
+     * Rolls up like the application does and forgets the aggregated values.
+     */
+    private static class NoStorageRepository extends SQLFactorioTimeSeriesRepositoryImpl {
+
+        NoStorageRepository() {
+            super("benchmark", null);
+        }
+
+        @Override
+        public Set<? extends Resolution> getSupportedResolutions() {
+            return Set.of(Application.RESOLUTION_PER_SECOND, Application.RESOLUTION_PER_TEN_SECONDS, Application.RESOLUTION_PER_MINUTE, Application.RESOLUTION_PER_TEN_MINUTES);
+        }
+
+        @Override
+        protected void ensureTable(Resolution resolution) {
+        }
+
+        @Override
+        protected void doStoreValue(Resolution resolution, FactorioMetric metric) {
+        }
+
+        @Override
+        protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResult) {
+            return List.of();
+        }
+
+        @Override
+        protected Long retrieveLastTick(Resolution resolution) {
+            return null;
+        }
+
+        @Override
+        protected void dropValuesBefore(Resolution resolution, long gameTick) {
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.Application;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inserts into and reads the latest values from an in-memory H2 database. The database is filled with an hour of
+ * samples first, every stored sample closes a bucket of the finest resolution and thus is one insert.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class H2RepositoryBenchmark {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final int PREFILLED_SAMPLES = 3600;
+
+    @Param({"100", "1000", "5000"})
+    private int itemCount;
+
+    @Param({"60", "600"})
+    private int maxResults;
+
+    private Connection connection;
+    private H2FactorioTimeSeriesRepositoryImpl repository;
+    private int[] itemIds;
+    private long[] consumed;
+    private long[] produced;
+    private long gameTick;
+
+    @Setup
+    public void setUp() throws SQLException, IOException {
+        itemIds = new int[itemCount];
+        consumed = new long[itemCount];
+        produced = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            itemIds[i] = ItemRegistry.idOf("item-" + i);
+            consumed[i] = 1000L * i;
+            produced[i] = 2000L * i;
+        }
+        connection = DriverManager.getConnection("jdbc:h2:mem:benchmark" + DATABASES.incrementAndGet());
+        repository = new H2FactorioTimeSeriesRepositoryImpl(connection, "benchmark", null) {
+            @Override
+            public Set<? extends Resolution> getSupportedResolutions() {
+                return Set.of(Application.RESOLUTION_PER_SECOND, Application.RESOLUTION_PER_TEN_SECONDS, Application.RESOLUTION_PER_MINUTE, Application.RESOLUTION_PER_TEN_MINUTES);
+            }
+        };
+        repository.setWriteBehind(false);
+        repository.init();
+        for (int i = 0; i < PREFILLED_SAMPLES; i++) {
+            store();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        repository.close();
+        connection.close();
+    }
+
+    @Benchmark
+    public void store() {
+        gameTick += 60L;
+        for (int i = 0; i < itemCount; i++) {
+            consumed[i] += i;
+            produced[i] += 2L * i;
+        }
+        repository.store(new FactorioMetric(gameTick, itemIds, consumed.clone(), produced.clone()));
+    }
+
+    @Benchmark
+    public List<FactorioMetric> retrieveLatest() {
+        return repository.retrieve(Application.RESOLUTION_PER_SECOND, null, maxResults);
+    }
+
+}
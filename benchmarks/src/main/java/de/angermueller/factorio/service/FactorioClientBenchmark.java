@@ -0,0 +1,143 @@
+package de.angermueller.factorio.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing collection responses into {@link FactorioClient.CollectionResult}s at realistic item counts, without any
+ * network in between. In delta mode every response changes a twentieth of the counters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactorioClientBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    private int itemCount;
+
+    @Param({"COMPACT", "JSON"})
+    private FactorioClient.WireFormat wireFormat;
+
+    @Param({"false", "true"})
+    private boolean deltaMode;
+
+    private FactorioClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        client = new FactorioClient(new StaticResponseClient(itemCount, wireFormat), deltaMode, wireFormat);
+        client.collect();
+    }
+
+    @Benchmark
+    public List<FactorioClient.CollectionResult> collect() throws IOException {
+        return client.collect();
+    }
+
+    /**
+     * Answers like the collection script would for a game with the given number of items. The responses are
+     * prepared up front, only their sequence number is written per collection.
+     */
+    private static class StaticResponseClient implements RCONClient {
+
+        private static final int DELTA_VARIANTS = 20;
+
+        private final byte[] fullResponse;
+        private final byte[][] deltaResponses = new byte[DELTA_VARIANTS][];
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        private long seq = 0L;
+
+        StaticResponseClient(int itemCount, FactorioClient.WireFormat wireFormat) {
+            this.fullResponse = response(itemCount, wireFormat, -1);
+            for (int i = 0; i < DELTA_VARIANTS; i++) {
+                deltaResponses[i] = response(itemCount, wireFormat, i);
+            }
+        }
+
+        /**
+         * Everything after the sequence number, in full if changed is negative, otherwise with the counters of the
+         * items whose index modulo {@link #DELTA_VARIANTS} equals changed.
+         */
+        private static byte[] response(int itemCount, FactorioClient.WireFormat wireFormat, int changed) {
+            final boolean full = changed < 0;
+            final StringBuilder json = new StringBuilder(itemCount * 32);
+            json.append(",\"gameTick\":60,\"full\":").append(full).append(",\"sources\":[{");
+            if(wireFormat == FactorioClient.WireFormat.JSON) {
+                json.append("\"itemsConsumed\":{");
+                appendObject(json, itemCount, changed, 1);
+                json.append("},\"itemsProduced\":{");
+                appendObject(json, itemCount, changed, 2);
+                json.append("}}]}");
+            } else if(full) {
+                json.append("\"base\":0,\"names\":[");
+                for (int i = 0; i < itemCount; i++) {
+                    json.append(i > 0 ? "," : "").append("\"item-").append(i).append('"');
+                }
+                json.append("],\"in\":[");
+                for (int i = 0; i < itemCount; i++) {
+                    json.append(i > 0 ? "," : "").append(1000L * i);
+                }
+                json.append("],\"out\":[");
+                for (int i = 0; i < itemCount; i++) {
+                    json.append(i > 0 ? "," : "").append(2000L * i);
+                }
+                json.append("]}]}");
+            } else {
+                json.append("\"base\":").append(itemCount).append(",\"names\":[],\"din\":[");
+                appendPairs(json, itemCount, changed, 1);
+                json.append("],\"dout\":[");
+                appendPairs(json, itemCount, changed, 2);
+                json.append("]}]}");
+            }
+            return json.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private static void appendObject(StringBuilder json, int itemCount, int changed, int factor) {
+            boolean first = true;
+            for (int i = 0; i < itemCount; i++) {
+                if(changed < 0 || i % DELTA_VARIANTS == changed) {
+                    json.append(first ? "" : ",").append("\"item-").append(i).append("\":").append(1000L * i * factor + changed);
+                    first = false;
+                }
+            }
+        }
+
+        private static void appendPairs(StringBuilder json, int itemCount, int changed, int factor) {
+            boolean first = true;
+            for (int i = changed; i < itemCount; i += DELTA_VARIANTS) {
+                json.append(first ? "" : ",").append(i).append(',').append(1000L * i * factor + changed);
+                first = false;
+            }
+        }
+
+        @Override
+        public String sendCommand(String command) {
+            // Probe: every module installed
+            return command.contains("factorio_buddy_modules") ? "1\n" : "";
+        }
+
+        @Override
+        public <T> T sendCommand(String command, ResponseHandler<T> handler) throws IOException {
+            if(!command.contains("rcon.print(collect_metrics")) {
+                return handler.handle(ByteBuffer.wrap(sendCommand(command).getBytes(StandardCharsets.US_ASCII)));
+            }
+            seq++;
+            buffer.clear();
+            buffer.put("{\"seq\":".getBytes(StandardCharsets.US_ASCII));
+            buffer.put(Long.toString(seq).getBytes(StandardCharsets.US_ASCII));
+            buffer.put(command.contains("(nil,") ? fullResponse : deltaResponses[(int) (seq % DELTA_VARIANTS)]);
+            buffer.flip();
+            return handler.handle(buffer);
+        }
+
+    }
+
+}
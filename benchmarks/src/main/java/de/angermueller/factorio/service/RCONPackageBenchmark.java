@@ -0,0 +1,76 @@
+package de.angermueller.factorio.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of RCON packages, the stream based {@link RCONClientImpl.RCONPackage} against the pooled
+ * {@link RCONPackageCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RCONPackageBenchmark {
+
+    @Param({"64", "4096", "65536"})
+    private int bodyLength;
+
+    private RCONClientImpl.RCONPackage rconPackage;
+    private byte[] encoded;
+    private ByteBuffer encodedBuffer;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private ByteBuffer target;
+    private ByteBuffer body;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder builder = new StringBuilder(bodyLength);
+        for (int i = 0; i < bodyLength; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        rconPackage = new RCONClientImpl.RCONPackage(42, RCONClientImpl.RCONPackage.Type.SERVERDATA_RESPONSE_VALUE, builder.toString());
+        encoded = rconPackage.toByteBuffer().array();
+        encodedBuffer = ByteBuffer.wrap(encoded);
+        target = ByteBuffer.allocate(RCONPackageCodec.encodedSize(builder));
+        body = ByteBuffer.allocate(bodyLength);
+    }
+
+    @Benchmark
+    public int writePackage() throws IOException {
+        out.reset();
+        rconPackage.write(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public RCONClientImpl.RCONPackage readPackage() throws IOException {
+        return RCONClientImpl.RCONPackage.read(new ByteArrayInputStream(encoded), true);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCodec() {
+        target.clear();
+        RCONPackageCodec.encode(42, RCONPackageCodec.TYPE_RESPONSE_VALUE, rconPackage.getBody(), target);
+        return target;
+    }
+
+    @Benchmark
+    public void decodeCodec(Blackhole blackhole) throws IOException {
+        encodedBuffer.clear();
+        body.clear();
+        final int length = RCONPackageCodec.completePackageLength(encodedBuffer);
+        blackhole.consume(RCONPackageCodec.id(encodedBuffer));
+        RCONPackageCodec.readBody(encodedBuffer, length, body);
+        blackhole.consume(body);
+    }
+
+}
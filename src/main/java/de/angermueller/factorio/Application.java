@@ -1,24 +1,30 @@
 package de.angermueller.factorio;
 
-import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.repository.Aggregators;
+import de.angermueller.factorio.repository.ColumnarFactorioTimeSeriesRepositoryImpl;
 import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
 import de.angermueller.factorio.repository.H2FactorioTimeSeriesRepositoryImpl;
+import de.angermueller.factorio.repository.SQLFactorioTimeSeriesRepositoryImpl;
 import de.angermueller.factorio.service.FactorioClient;
-import de.angermueller.factorio.service.OnDemandRCONClient;
-import de.angermueller.factorio.service.RCONClient;
-import de.angermueller.factorio.util.ClosableBucket;
+import de.angermueller.factorio.service.FactorioServer;
+import de.angermueller.factorio.service.FactorioServerRegistry;
+import de.angermueller.factorio.service.PipelinedRCONClient;
+import de.angermueller.factorio.service.StatisticSource;
+import org.h2.jdbcx.JdbcConnectionPool;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.context.ApplicationEventPublisher;
-import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.*;
 
 @EnableScheduling
@@ -30,7 +36,7 @@ public class Application {
     public static BasicResolution RESOLUTION_PER_MINUTE = new BasicResolution(60*60, "minutes");
     public static BasicResolution RESOLUTION_PER_TEN_MINUTES = new BasicResolution(40*60*60, "ten_minutes");
 
-    @Value("${rcon.host}")
+    @Value("${rcon.host:}")
     private String rconHost;
 
     @Value("${rcon.port:27015}")
@@ -39,6 +45,82 @@ public class Application {
     @Value("${rcon.password:}")
     private String rconPassword;
 
+    @Value("${rcon.timeout:10000}")
+    private long rconTimeout;
+
+    @Value("${rcon.multi-packet-responses:true}")
+    private boolean rconMultiPacketResponses;
+
+    @Value("${rcon.direct-buffers:false}")
+    private boolean rconDirectBuffers;
+
+    @Value("${collector.delta-mode:true}")
+    private boolean collectorDeltaMode;
+
+    @Value("${collector.wire-format:COMPACT}")
+    private FactorioClient.WireFormat collectorWireFormat;
+
+    /** Statistics collected from every server not listing its own, e.g. player/item,player/fluid,enemy/kill */
+    @Value("${collector.sources:player/item}")
+    private String[] collectorSources;
+
+    /** Game ticks between in-game samples, 0 to sample on every collection instead */
+    @Value("${collector.buffer.interval:0}")
+    private int collectorBufferInterval;
+
+    @Value("${collector.buffer.capacity:3600}")
+    private int collectorBufferCapacity;
+
+    @Value("${storage.engine:h2}")
+    private String storageEngine;
+
+    @Value("${storage.columnar.directory:./data/columnar}")
+    private String columnarDirectory;
+
+    @Value("${storage.write-behind:true}")
+    private boolean storageWriteBehind;
+
+    @Value("${storage.write-queue-capacity:10000}")
+    private int storageWriteQueueCapacity;
+
+    @Value("${storage.flush-size:256}")
+    private int storageFlushSize;
+
+    @Value("${storage.flush-latency:1000}")
+    private long storageFlushLatency;
+
+    @Value("${storage.write-retry.initial:1000}")
+    private long storageWriteRetryInitial;
+
+    @Value("${storage.write-retry.max:60000}")
+    private long storageWriteRetryMax;
+
+    @Value("${storage.write-retry.attempts:10}")
+    private int storageWriteAttempts;
+
+    @Value("${storage.checkpoint.directory:./data}")
+    private String storageCheckpointDirectory;
+
+    @Value("${storage.checkpoint.interval:60000}")
+    private long storageCheckpointInterval;
+
+    @Value("${storage.retention.interval:600000}")
+    private long storageRetentionInterval;
+
+    @Value("${storage.h2.read-connections:4}")
+    private int storageReadConnections;
+
+    @Value("${storage.h2.partition-buckets:4096}")
+    private long storagePartitionBuckets;
+
+    @Value("${storage.hot-tier-size:1500}")
+    private int storageHotTierSize;
+
+    @Value("${storage.aggregation.default:max}")
+    private String storageAggregation;
+
+    private static final String H2_URL = "jdbc:h2:./data/time_series";
+
     private static final Set<BasicResolution> RESOLUTIONS = Set.of(
             RESOLUTION_PER_SECOND,
             RESOLUTION_PER_TEN_SECONDS,
@@ -46,33 +128,124 @@ public class Application {
             RESOLUTION_PER_TEN_MINUTES
     );
 
+    /** Name of the server configured by the plain rcon.* properties when no servers are listed */
+    private static final String DEFAULT_SERVER = "default";
+    private static final String DEFAULT_SERIES = "resources";
+
     public static void main(String[] args) {
         new SpringApplicationBuilder(Application.class).run(args);
     }
 
-    @Bean
-    public FactorioClient factorioClient(RCONClient rconClient) {
-        return new FactorioClient(rconClient);
+    /**
+     * Connections for reads shared by all series, so they don't have to wait for the writes on the series' own
+     * connections.
+     */
+    @Bean(destroyMethod = "dispose")
+    public JdbcConnectionPool sqlReadConnectionPool() {
+        final JdbcConnectionPool pool = JdbcConnectionPool.create(H2_URL, "", "");
+        pool.setMaxConnections(storageReadConnections);
+        return pool;
     }
 
+    /**
+     * One RCON connection and series per server listed in {@code servers}, e.g. {@code servers=alpha,beta} with
+     * {@code servers.alpha.rcon.host=...} and {@code servers.alpha.series=...}. Unset server properties fall back to
+     * the plain rcon.* ones, the series defaults to the server's name. Without a list the plain rcon.* properties
+     * configure a single server with the series 'resources'. The item statistics of the player force go to the
+     * server's series, other sources to series named after it, see {@link StatisticSource#seriesName(String)}.
+     */
     @Bean
-    public RCONClient rconClient() {
-        return new OnDemandRCONClient(rconHost, rconPort, Optional.of(rconPassword).filter(s -> !s.isEmpty()).orElse(null));
+    public FactorioServerRegistry factorioServers(ApplicationEventPublisher eventPublisher, JdbcConnectionPool readConnectionPool, Environment environment) throws SQLException, IOException {
+        final FactorioServerRegistry registry = new FactorioServerRegistry();
+        try {
+            final List<String> names = Arrays.stream(environment.getProperty("servers", String[].class, new String[0]))
+                    .map(String::trim)
+                    .filter(name -> !name.isEmpty())
+                    .toList();
+            if(names.isEmpty()) {
+                registry.register(createServer(registry, DEFAULT_SERVER, DEFAULT_SERIES, rconHost, rconPort, rconPassword, collectorSources, eventPublisher, readConnectionPool, environment));
+            }
+            for (String name : names) {
+                final String prefix = "servers." + name + ".";
+                registry.register(createServer(registry, name,
+                        environment.getProperty(prefix + "series", name),
+                        environment.getProperty(prefix + "rcon.host", rconHost),
+                        environment.getProperty(prefix + "rcon.port", Integer.class, rconPort),
+                        environment.getProperty(prefix + "rcon.password", rconPassword),
+                        environment.getProperty(prefix + "sources", String[].class, collectorSources),
+                        eventPublisher, readConnectionPool, environment));
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            registry.close();
+            throw e;
+        }
+        return registry;
     }
 
-    @Bean
-    public ClosableBucket<Connection> sqlConnection() throws SQLException {
-        return new ClosableBucket<>(DriverManager.getConnection("jdbc:h2:./data/time_series"));
+    private FactorioServer createServer(FactorioServerRegistry registry, String name, String series, String host, int port, String password, String[] sourceNames,
+                                        ApplicationEventPublisher eventPublisher, JdbcConnectionPool readConnectionPool, Environment environment) throws SQLException, IOException {
+        if(host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("No rcon.host configured for server '" + name + "'");
+        }
+        final PipelinedRCONClient rconClient = registry.manage(new PipelinedRCONClient(host, port, Optional.ofNullable(password).filter(s -> !s.isEmpty()).orElse(null), rconTimeout, rconMultiPacketResponses, rconDirectBuffers));
+        final List<StatisticSource> sources = Arrays.stream(sourceNames).map(StatisticSource::parse).distinct().toList();
+        final Map<StatisticSource, SQLFactorioTimeSeriesRepositoryImpl> repositories = new LinkedHashMap<>();
+        for (StatisticSource source : sources) {
+            final SQLFactorioTimeSeriesRepositoryImpl repository = createRepository(registry, source.seriesName(series), eventPublisher, readConnectionPool, environment);
+            repository.init();
+            repositories.put(source, repository);
+        }
+        return new FactorioServer(name, new FactorioClient(rconClient, collectorDeltaMode, collectorWireFormat, sources,
+                collectorBufferInterval > 0 ? new FactorioClient.Sampling(collectorBufferInterval, collectorBufferCapacity) : null), repositories);
     }
 
-    @Bean
-    public H2FactorioTimeSeriesRepositoryImpl resourcesTimeSeriesRepository(ApplicationEventPublisher eventPublisher, ClosableBucket<Connection> connectionBucket) throws SQLException {
-        return new H2FactorioTimeSeriesRepositoryImpl(connectionBucket.getValue(), "resources", eventPublisher) {
-            @Override
-            public Set<? extends Resolution> getSupportedResolutions() {
-                return RESOLUTIONS;
+    private SQLFactorioTimeSeriesRepositoryImpl createRepository(FactorioServerRegistry registry, String series, ApplicationEventPublisher eventPublisher, JdbcConnectionPool readConnectionPool, Environment environment) throws SQLException {
+        final SQLFactorioTimeSeriesRepositoryImpl repository;
+        if(storageEngine.equals("columnar")) {
+            repository = registry.manage(new ColumnarFactorioTimeSeriesRepositoryImpl(Path.of(columnarDirectory), series, eventPublisher) {
+                @Override
+                public Set<? extends Resolution> getSupportedResolutions() {
+                    return RESOLUTIONS;
+                }
+            });
+        } else {
+            // Own write connection per series, the repository commits its batches on it
+            final Connection connection = registry.manage(DriverManager.getConnection(H2_URL));
+            final H2FactorioTimeSeriesRepositoryImpl h2Repository = registry.manage(new H2FactorioTimeSeriesRepositoryImpl(connection, readConnectionPool, series, eventPublisher) {
+                @Override
+                public Set<? extends Resolution> getSupportedResolutions() {
+                    return RESOLUTIONS;
+                }
+            });
+            h2Repository.setPartitionBuckets(storagePartitionBuckets);
+            repository = h2Repository;
+        }
+        repository.setWriteBehind(storageWriteBehind);
+        repository.setWriteQueueCapacity(storageWriteQueueCapacity);
+        repository.setFlushSize(storageFlushSize);
+        repository.setFlushLatencyMillis(storageFlushLatency);
+        repository.setWriteRetryInitialMillis(storageWriteRetryInitial);
+        repository.setWriteRetryMaxMillis(storageWriteRetryMax);
+        repository.setWriteAttempts(storageWriteAttempts);
+        // One checkpoint per engine, the open buckets have to match the stored values
+        repository.setCheckpointFile(Path.of(storageCheckpointDirectory, series + "-" + storageEngine + ".checkpoint"));
+        repository.setCheckpointIntervalMillis(storageCheckpointInterval);
+        repository.setRetentionIntervalMillis(storageRetentionInterval);
+        repository.setHotTierCapacity(storageHotTierSize);
+        repository.setDefaultAggregator(Aggregators.of(storageAggregation));
+        // Per resolution overrides, e.g. storage.aggregation.minutes=rate_per_minute
+        for (BasicResolution resolution : RESOLUTIONS) {
+            final String aggregation = environment.getProperty("storage.aggregation." + resolution.identifier());
+            if(aggregation != null) {
+                repository.setAggregator(resolution, Aggregators.of(aggregation));
             }
-        };
+            // e.g. storage.retention.seconds=2d, game time at 60 ticks per second
+            final Duration retention = environment.getProperty("storage.retention." + resolution.identifier(), Duration.class);
+            if(retention != null) {
+                repository.setRetention(resolution, retention.toSeconds() * RESOLUTION_PER_SECOND.ticksPerUnit());
+            }
+        }
+        return repository;
     }
 
     public record BasicResolution(long ticksPerUnit, String identifier) implements FactorioTimeSeriesRepository.Resolution {
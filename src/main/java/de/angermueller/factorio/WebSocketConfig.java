@@ -1,22 +1,30 @@
 package de.angermueller.factorio;
 
 import de.angermueller.factorio.controller.WebSocketHandler;
-import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import de.angermueller.factorio.service.FactorioServerRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
-import java.util.Collection;
-
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
     @Autowired
-    private Collection<FactorioTimeSeriesRepository> timeSeriesRepositories;
+    private FactorioServerRegistry servers;
+
+    @Value("${websocket.send-queue-capacity:256}")
+    private int sendQueueCapacity;
+
+    @Value("${websocket.overflow-policy:DROP_OLDEST}")
+    private WebSocketHandler.OverflowPolicy overflowPolicy;
+
+    @Value("${websocket.sender-threads:4}")
+    private int senderThreads;
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry webSocketHandlerRegistry) {
@@ -25,7 +33,7 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     @Bean
     public WebSocketHandler webSocketHandler() {
-        return new WebSocketHandler(timeSeriesRepositories);
+        return new WebSocketHandler(servers.getRepositories(), sendQueueCapacity, overflowPolicy, senderThreads);
     }
 
 }
@@ -0,0 +1,184 @@
+package de.angermueller.factorio.controller;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.util.VarInts;
+import org.springframework.web.socket.BinaryMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes the metrics sent to one session into binary frames relative to everything sent before, so every frame has
+ * to reach the client and in order. Frame layout (varints, signed ones zig-zag encoded):
+ * <pre>
+ * u8     flags, 1 = reset: the client drops its dictionary and channels first
+ * varint number of new items, then their names, indices continue the session's dictionary
+ * varint number of new channels, then stream and resolution of each, ids continue as well
+ * varint channel id
+ * varint number of metrics, each:
+ *   signed tick delta to the previous metric of the channel
+ *   varint number of changed items, then item index and signed delta of consumed - produced
+ *   varint number of items no longer present, then their indices
+ * </pre>
+ * Strings are a varint byte length followed by UTF-8. Values of items that were not present count as 0.
+ */
+class BinaryMetricEncoder {
+
+    private static final int FLAG_RESET = 1;
+
+    private int[] indexByItemId = new int[0];
+    private int itemCount = 0;
+    private final Map<String, Channel> channels = new HashMap<>();
+    private boolean reset = true;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final List<String> newItems = new ArrayList<>();
+
+    synchronized BinaryMessage encode(String stream, String resolution, List<FactorioMetric> metrics) {
+        newItems.clear();
+        Channel channel = channels.get(stream + "/" + resolution);
+        final boolean newChannel = channel == null;
+        if(newChannel) {
+            channel = new Channel(channels.size());
+            channels.put(stream + "/" + resolution, channel);
+        }
+        for (FactorioMetric metric : metrics) {
+            for (int i = 0; i < metric.size(); i++) {
+                indexOf(metric.getItemId(i));
+            }
+        }
+        buffer.clear();
+        ensureRemaining(1 + 3 * 5);
+        buffer.put((byte) (reset ? FLAG_RESET : 0));
+        reset = false;
+        VarInts.putVarInt(buffer, newItems.size());
+        for (String name : newItems) {
+            putString(name);
+        }
+        VarInts.putVarInt(buffer, newChannel ? 1 : 0);
+        if(newChannel) {
+            putString(stream);
+            putString(resolution);
+        }
+        ensureRemaining(2 * 5);
+        VarInts.putVarInt(buffer, channel.id);
+        VarInts.putVarInt(buffer, metrics.size());
+        for (FactorioMetric metric : metrics) {
+            ensureRemaining(VarInts.MAX_LONG_BYTES + 2 * 5 + metric.size() * (5 + VarInts.MAX_LONG_BYTES) + channel.presentCount * 5);
+            channel.encode(metric);
+        }
+        buffer.flip();
+        final byte[] frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+        return new BinaryMessage(frame);
+    }
+
+    private int indexOf(int itemId) {
+        if(itemId >= indexByItemId.length) {
+            final int oldLength = indexByItemId.length;
+            indexByItemId = Arrays.copyOf(indexByItemId, Math.max(itemId + 1, ItemRegistry.size()));
+            Arrays.fill(indexByItemId, oldLength, indexByItemId.length, -1);
+        }
+        if(indexByItemId[itemId] == -1) {
+            indexByItemId[itemId] = itemCount++;
+            newItems.add(ItemRegistry.nameOf(itemId));
+        }
+        return indexByItemId[itemId];
+    }
+
+    private void putString(String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(5 + bytes.length);
+        VarInts.putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if(buffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * State of a stream and resolution as the client knows it.
+     */
+    private class Channel {
+
+        private final int id;
+        private long lastTick = 0L;
+        private long[] values = new long[0];
+        private boolean[] present = new boolean[0];
+        private int[] presentIndices = new int[64];
+        private int presentCount = 0;
+        // Marks the items of the metric being encoded
+        private int[] seen = new int[0];
+        private int generation = 0;
+
+        Channel(int id) {
+            this.id = id;
+        }
+
+        void encode(FactorioMetric metric) {
+            if(values.length < itemCount) {
+                values = Arrays.copyOf(values, Math.max(itemCount, values.length * 2));
+                present = Arrays.copyOf(present, values.length);
+                seen = Arrays.copyOf(seen, values.length);
+            }
+            generation++;
+            VarInts.putSignedVarLong(buffer, metric.getGameTick() - lastTick);
+            lastTick = metric.getGameTick();
+            int changed = 0;
+            for (int i = 0; i < metric.size(); i++) {
+                final int index = indexByItemId[metric.getItemId(i)];
+                if(!present[index] || values[index] != metric.getConsumed(i) - metric.getProduced(i)) {
+                    changed++;
+                }
+            }
+            VarInts.putVarInt(buffer, changed);
+            for (int i = 0; i < metric.size(); i++) {
+                final int index = indexByItemId[metric.getItemId(i)];
+                final long value = metric.getConsumed(i) - metric.getProduced(i);
+                seen[index] = generation;
+                if(!present[index] || values[index] != value) {
+                    VarInts.putVarInt(buffer, index);
+                    VarInts.putSignedVarLong(buffer, value - (present[index] ? values[index] : 0L));
+                    values[index] = value;
+                }
+            }
+            int removed = 0;
+            for (int i = 0; i < presentCount; i++) {
+                if(seen[presentIndices[i]] != generation) {
+                    removed++;
+                }
+            }
+            VarInts.putVarInt(buffer, removed);
+            int kept = 0;
+            for (int i = 0; i < presentCount; i++) {
+                final int index = presentIndices[i];
+                if(seen[index] != generation) {
+                    VarInts.putVarInt(buffer, index);
+                    present[index] = false;
+                } else {
+                    presentIndices[kept++] = index;
+                }
+            }
+            presentCount = kept;
+            for (int i = 0; i < metric.size(); i++) {
+                final int index = indexByItemId[metric.getItemId(i)];
+                if(!present[index]) {
+                    present[index] = true;
+                    if(presentCount == presentIndices.length) {
+                        presentIndices = Arrays.copyOf(presentIndices, presentCount * 2);
+                    }
+                    presentIndices[presentCount++] = index;
+                }
+            }
+        }
+
+    }
+
+}
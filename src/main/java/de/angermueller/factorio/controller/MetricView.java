@@ -0,0 +1,32 @@
+package de.angermueller.factorio.controller;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemFilter;
+import de.angermueller.factorio.domain.TopItems;
+
+/**
+ * What a subscription gets to see of a metric: the items matching the filter, reduced to the top items if requested.
+ * Subscriptions with equal views share the projected and encoded metrics.
+ */
+record MetricView(ItemFilter filter, TopItems top) {
+
+    static final MetricView ALL = new MetricView(null, null);
+
+    static MetricView of(ItemFilter filter, TopItems top) {
+        return filter == null && top == null ? ALL : new MetricView(filter, top);
+    }
+
+    /**
+     * @param baseline What top items are ranked against, see {@link TopItems#select(FactorioMetric, TopItems.Baseline)}
+     */
+    FactorioMetric apply(FactorioMetric metric, TopItems.Baseline baseline) {
+        if(filter != null) {
+            metric = filter.project(metric);
+        }
+        if(top != null) {
+            metric = top.select(metric, baseline);
+        }
+        return metric;
+    }
+
+}
@@ -0,0 +1,137 @@
+package de.angermueller.factorio.controller;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import de.angermueller.factorio.service.FactorioServerRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Range queries over the stored series: {@code GET /api/metrics?series=resources&resolution=minutes&from=0&to=216000}
+ * answers every combination of the given series and resolutions with the latest {@code limit} values in the tick range
+ * ({@code from}, {@code to}], in ascending order. Values of closed buckets only change when retention drops them or the
+ * stored data is replaced, so a response whose range is closed in every queried resolution gets an ETag of the query,
+ * the generation of the data and the part of the range retention has reached. It is cacheable forever unless a
+ * queried resolution has a retention, such responses have to be revalidated.
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsRestController {
+
+    private static final long MAX_LIMIT = 10000L;
+    private static final String CLOSED_RANGE_CACHE_CONTROL = CacheControl.maxAge(Duration.ofDays(365)).cachePublic().getHeaderValue() + ", immutable";
+    private static final String EXPIRING_RANGE_CACHE_CONTROL = CacheControl.noCache().cachePublic().getHeaderValue();
+
+    private final Map<String, FactorioTimeSeriesRepository> timeSeriesRepositoryMap;
+
+    @Autowired
+    public MetricsRestController(FactorioServerRegistry servers) {
+        this(servers.getRepositories());
+    }
+
+    public MetricsRestController(Collection<FactorioTimeSeriesRepository> timeSeriesRepositories) {
+        Map<String, FactorioTimeSeriesRepository> timeSeriesRepositoryMap = new HashMap<>();
+        for (FactorioTimeSeriesRepository repository : timeSeriesRepositories) {
+            timeSeriesRepositoryMap.put(repository.getSeriesName(), repository);
+        }
+        this.timeSeriesRepositoryMap = Collections.unmodifiableMap(timeSeriesRepositoryMap);
+    }
+
+    @GetMapping
+    public ResponseEntity<List<WebSocketHandler.Metrics>> getMetrics(@RequestParam("series") List<String> series,
+                                                                     @RequestParam("resolution") List<String> resolutions,
+                                                                     @RequestParam(value = "from", required = false) Long from,
+                                                                     @RequestParam(value = "to", required = false) Long to,
+                                                                     @RequestParam(value = "limit", defaultValue = "1000") long limit,
+                                                                     @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        if(limit <= 0 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MAX_LIMIT);
+        }
+        final List<Query> queries = new ArrayList<>();
+        boolean closed = to != null;
+        boolean expiring = false;
+        final StringBuilder dataState = new StringBuilder();
+        for (String seriesName : series) {
+            final FactorioTimeSeriesRepository repository = timeSeriesRepositoryMap.get(seriesName);
+            if(repository == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Series '" + seriesName + "' not found");
+            }
+            for (String identifier : resolutions) {
+                final FactorioTimeSeriesRepository.Resolution resolution = repository.getSupportedResolutions().stream()
+                        .filter(r -> r.identifier().equals(identifier))
+                        .findFirst()
+                        .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Resolution '" + identifier + "' not supported for series '" + seriesName + "'"));
+                if(closed) {
+                    final Long lastClosedTick = repository.getLastClosedTick(resolution);
+                    closed = lastClosedTick != null && to <= lastClosedTick;
+                    expiring |= repository.hasRetention(resolution);
+                    // Only where retention cut into the range, later runs change it as long as they do so
+                    final Long horizon = repository.getRetentionHorizon(resolution);
+                    final long effectiveFrom = Math.max(from == null ? 0L : from, horizon == null ? 0L : horizon);
+                    dataState.append(repository.getGeneration()).append('@').append(effectiveFrom).append(';');
+                }
+                queries.add(new Query(repository, resolution));
+            }
+        }
+        final String etag = closed ? etag(series, resolutions, from, to, limit, dataState) : null;
+        final String cacheControl = expiring ? EXPIRING_RANGE_CACHE_CONTROL : CLOSED_RANGE_CACHE_CONTROL;
+        if(etag != null && matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).header(HttpHeaders.CACHE_CONTROL, cacheControl).build();
+        }
+        final List<WebSocketHandler.Metrics> result = new ArrayList<>(queries.size());
+        for (Query query : queries) {
+            List<FactorioMetric> metrics = query.repository.retrieve(query.resolution, from, to, limit);
+            final List<WebSocketHandler.MetricEventData> data = new ArrayList<>(metrics.size());
+            for (int i = metrics.size() - 1; i >= 0; i--) {
+                data.add(new WebSocketHandler.MetricEventData(metrics.get(i)));
+            }
+            result.add(new WebSocketHandler.Metrics(query.repository.getSeriesName(), query.resolution.identifier(), data));
+        }
+        if(etag == null) {
+            return ResponseEntity.ok().cacheControl(CacheControl.noCache()).body(result);
+        }
+        return ResponseEntity.ok().eTag(etag).header(HttpHeaders.CACHE_CONTROL, cacheControl).body(result);
+    }
+
+    private static String etag(List<String> series, List<String> resolutions, Long from, Long to, long limit, CharSequence dataState) {
+        final String query = String.join(",", series) + "|" + String.join(",", resolutions) + "|" + from + "|" + to + "|" + limit + "|" + dataState;
+        return "\"" + DigestUtils.md5DigestAsHex(query.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    /**
+     * Weak comparison against an If-None-Match header: a list of (possibly weak) entity tags or {@code *}.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if(candidate.equals("*")) {
+                return true;
+            }
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private record Query(FactorioTimeSeriesRepository repository, FactorioTimeSeriesRepository.Resolution resolution) {
+
+    }
+
+}
@@ -0,0 +1,144 @@
+package de.angermueller.factorio.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Bounded queue of the messages to send to one session. Messages are sent in order by a task on the given executor,
+ * so neither the broadcaster nor other sessions ever wait for a slow socket. They are only encoded right before
+ * sending, which keeps session specific encodings in sync with what the client actually received.
+ */
+@Slf4j
+class SessionOutbox {
+
+    private final WebSocketSession session;
+    private final int capacity;
+    private final WebSocketHandler.OverflowPolicy overflowPolicy;
+    private final Executor executor;
+    private final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+    private boolean draining = false;
+    private boolean closed = false;
+    private long dropped = 0L;
+    /** Set once the session asked for binary frames */
+    private volatile BinaryMetricEncoder binaryEncoder;
+    /** Views by subscription key, subscriptions seeing everything have no entry */
+    private final Map<String, MetricView> views = new ConcurrentHashMap<>();
+
+    SessionOutbox(WebSocketSession session, int capacity, WebSocketHandler.OverflowPolicy overflowPolicy, Executor executor) {
+        assert session != null && overflowPolicy != null && executor != null;
+        assert capacity > 0;
+        this.session = session;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+    }
+
+    WebSocketSession getSession() {
+        return session;
+    }
+
+    BinaryMetricEncoder getBinaryEncoder() {
+        return binaryEncoder;
+    }
+
+    void switchToBinary() {
+        if(binaryEncoder == null) {
+            binaryEncoder = new BinaryMetricEncoder();
+        }
+    }
+
+    MetricView getView(String subscriptionKey) {
+        return views.getOrDefault(subscriptionKey, MetricView.ALL);
+    }
+
+    void setView(String subscriptionKey, MetricView view) {
+        if(view == null || view == MetricView.ALL) {
+            views.remove(subscriptionKey);
+        } else {
+            views.put(subscriptionKey, view);
+        }
+    }
+
+    void offer(WebSocketMessage<?> message) {
+        offer(() -> message);
+    }
+
+    void offer(Outgoing message) {
+        synchronized (this) {
+            if(closed) {
+                return;
+            }
+            if(queue.size() >= capacity) {
+                if(overflowPolicy == WebSocketHandler.OverflowPolicy.DISCONNECT) {
+                    log.warn("Send queue of session {} overflowed, disconnecting", session.getId());
+                    closed = true;
+                    queue.clear();
+                    executor.execute(() -> closeSession(CloseStatus.SESSION_NOT_RELIABLE));
+                    return;
+                }
+                queue.pollFirst();
+                if(dropped++ % 100 == 0) {
+                    log.debug("Send queue of session {} overflowed, {} messages dropped so far", session.getId(), dropped);
+                }
+            }
+            queue.addLast(message);
+            if(draining) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            final Outgoing message;
+            synchronized (this) {
+                message = closed ? null : queue.pollFirst();
+                if(message == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                session.sendMessage(message.encode());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to send to session {}, disconnecting", session.getId(), e);
+                close();
+                closeSession(CloseStatus.SERVER_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Discards everything not sent yet, further messages are ignored.
+     */
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private void closeSession(CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.debug("Unable to close session {}", session.getId(), e);
+        }
+    }
+
+    @FunctionalInterface
+    interface Outgoing {
+
+        WebSocketMessage<?> encode() throws IOException;
+
+    }
+
+}
@@ -1,10 +1,18 @@
 package de.angermueller.factorio.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
 import de.angermueller.factorio.Application;
 import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemFilter;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.domain.TopItems;
 import de.angermueller.factorio.event.MetricEvent;
 import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import jakarta.annotation.PreDestroy;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -16,43 +24,86 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 @Slf4j
 public class WebSocketHandler extends TextWebSocketHandler implements ApplicationListener<MetricEvent> {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
-    private final Map<String, Set<WebSocketSession>> sessionMap = new HashMap<>();
+    private final Map<String, Set<SessionOutbox>> sessionMap = new HashMap<>();
     private final ReadWriteLock sessionMapLock = new ReentrantReadWriteLock();
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
     private final Map<String, FactorioTimeSeriesRepository> timeSeriesRepositoryMap;
+    private final int sendQueueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    // Events are encoded and queued in order on a single thread, the sockets are written by the sender pool
+    private final ExecutorService broadcaster = Executors.newSingleThreadExecutor(daemonThreads("ws-broadcast"));
+    private final ExecutorService senders;
+    /** Last metric broadcast per subscription key, top items are ranked against it. Broadcaster thread only */
+    private final Map<String, FactorioMetric> lastMetrics = new HashMap<>();
+    /** Counters of the last metric per subscription key, only kept up to date while a view ranks top items */
+    private final Map<String, TopItems.Baseline> baselines = new HashMap<>();
 
     public WebSocketHandler(Collection<FactorioTimeSeriesRepository> timeSeriesRepositories) {
+        this(timeSeriesRepositories, 256, OverflowPolicy.DROP_OLDEST, 4);
+    }
+
+    /**
+     * @param sendQueueCapacity Messages queued per session before the overflow policy kicks in
+     * @param senderThreads     Threads writing to the sessions, a blocked socket occupies one of them
+     */
+    public WebSocketHandler(Collection<FactorioTimeSeriesRepository> timeSeriesRepositories, int sendQueueCapacity, OverflowPolicy overflowPolicy, int senderThreads) {
+        assert sendQueueCapacity > 0 && senderThreads > 0;
+        assert overflowPolicy != null;
         Map<String, FactorioTimeSeriesRepository> timeSeriesRepositoryMap = new HashMap<>();
         for (FactorioTimeSeriesRepository repository : timeSeriesRepositories) {
             timeSeriesRepositoryMap.put(repository.getSeriesName(), repository);
         }
         this.timeSeriesRepositoryMap = Collections.unmodifiableMap(timeSeriesRepositoryMap);
+        this.sendQueueCapacity = sendQueueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.senders = Executors.newFixedThreadPool(senderThreads, daemonThreads("ws-send"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    public void close() {
+        broadcaster.shutdownNow();
+        senders.shutdownNow();
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         log.debug("Connection established: {}", session.getId());
+        outboxes.put(session.getId(), new SessionOutbox(session, sendQueueCapacity, overflowPolicy, senders));
         super.afterConnectionEstablished(session);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         super.afterConnectionClosed(session, status);
+        final SessionOutbox outbox = outboxes.remove(session.getId());
+        if(outbox == null) {
+            return;
+        }
+        outbox.close();
         sessionMapLock.writeLock().lock();
         try {
             Set<String> empty = new HashSet<>();
-            for (Map.Entry<String, Set<WebSocketSession>> entry : sessionMap.entrySet()) {
-                if(entry.getValue().remove(session)) {
+            for (Map.Entry<String, Set<SessionOutbox>> entry : sessionMap.entrySet()) {
+                if(entry.getValue().remove(outbox)) {
                     if(entry.getValue().isEmpty()) {
                         empty.add(entry.getKey());
                     }
@@ -69,6 +120,10 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        final SessionOutbox outbox = outboxes.get(session.getId());
+        if(outbox == null) {
+            return;
+        }
         SubscribeCommand subscribeCommand = MAPPER.readValue(message.getPayload(), SubscribeCommand.class);
         log.trace("New command {}", subscribeCommand);
         if(subscribeCommand.action.equals("subscribe")) {
@@ -80,28 +135,47 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
             if(!repository.getSupportedResolutions().contains(resolution)) {
                 throw new IllegalArgumentException("Resolution '" + subscribeCommand.resolution + "' not supported for series '" + subscribeCommand.stream + "'");
             }
+            if(subscribeCommand.binary) {
+                outbox.switchToBinary();
+            }
+            final String key = subscribeCommand.stream + "/" + subscribeCommand.resolution;
+            final TopItems top = subscribeCommand.top > 0
+                    ? new TopItems(subscribeCommand.top, TopItems.Ranking.valueOf(subscribeCommand.rankBy.toUpperCase(Locale.ROOT)))
+                    : null;
+            final MetricView view = MetricView.of(ItemFilter.of(subscribeCommand.items), top);
             sessionMapLock.writeLock().lock();
             try {
+                outbox.setView(key, view);
                 if(subscribeCommand.maxHistory > 0) {
-                    List<FactorioMetric> dbMetrics = repository.retrieve(resolution, 0L, subscribeCommand.maxHistory);
+                    final TopItems.Baseline baseline = new TopItems.Baseline(repository.getAggregator(resolution).isCumulative());
+                    // One more to rank the oldest one sent against
+                    List<FactorioMetric> dbMetrics = repository.retrieve(resolution, 0L, subscribeCommand.maxHistory + (top == null ? 0 : 1));
                     Collections.sort(dbMetrics);
-                    ArrayList<MetricEventData> data = new ArrayList<>(dbMetrics.size());
-                    dbMetrics.stream().map(this::pack).forEach(data::add);
-                    try {
-                        session.sendMessage(new TextMessage(MAPPER.writeValueAsString(new Metrics(subscribeCommand.stream, subscribeCommand.resolution, data))));
-                    } catch (IOException e) {
-                        log.warn("IOException while sending ws message", e);
+                    final List<FactorioMetric> history = new ArrayList<>(dbMetrics.size());
+                    for (int i = dbMetrics.size() > subscribeCommand.maxHistory ? 1 : 0; i < dbMetrics.size(); i++) {
+                        baseline.rankAgainst(i > 0 ? dbMetrics.get(i - 1) : null);
+                        history.add(view.apply(dbMetrics.get(i), baseline));
+                    }
+                    // Queued ahead of any live update, those are queued with the read lock held
+                    final BinaryMetricEncoder encoder = outbox.getBinaryEncoder();
+                    if(encoder != null) {
+                        outbox.offer(() -> encoder.encode(subscribeCommand.stream, subscribeCommand.resolution, history));
+                    } else {
+                        ArrayList<MetricEventData> data = new ArrayList<>(history.size());
+                        history.stream().map(this::pack).forEach(data::add);
+                        outbox.offer(new TextMessage(MAPPER.writeValueAsString(new Metrics(subscribeCommand.stream, subscribeCommand.resolution, data))));
                     }
                 }
-                final String key = subscribeCommand.stream + "/" + subscribeCommand.resolution;
-                sessionMap.computeIfAbsent(key, ignored -> new HashSet<>()).add(session);
+                sessionMap.computeIfAbsent(key, ignored -> new HashSet<>()).add(outbox);
             } finally {
                 sessionMapLock.writeLock().unlock();
             }
         } else if(subscribeCommand.action.equals("unsubscribe")) {
+            final String key = subscribeCommand.stream + "/" + subscribeCommand.resolution;
             sessionMapLock.writeLock().lock();
             try {
-                sessionMap.get(subscribeCommand.stream + "/" + subscribeCommand.resolution).remove(session);
+                sessionMap.getOrDefault(key, new HashSet<>()).remove(outbox);
+                outbox.setView(key, null);
             } finally {
                 sessionMapLock.writeLock().unlock();
             }
@@ -110,44 +184,78 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
         }
     }
 
+    /**
+     * Only hands the event over to the broadcaster, it is published from within the repository's store.
+     */
     @Override
     public void onApplicationEvent(MetricEvent event) {
+        try {
+            broadcaster.execute(() -> broadcast(event));
+        } catch (RejectedExecutionException e) {
+            log.debug("Broadcaster shut down, dropping {}", event);
+        }
+    }
+
+    private void broadcast(MetricEvent event) {
         final String key = event.getSeries() + "/" + event.getResolution().identifier();
-        MetricEventData data = pack(event.getMetric());
-        Metrics metrics = new Metrics(event.getSeries(), event.getResolution().identifier(), List.of(data));
+        final FactorioMetric previous = lastMetrics.put(key, event.getMetric());
         sessionMapLock.readLock().lock();
         try {
-            for (WebSocketSession session : sessionMap.getOrDefault(key, Set.of())) {
-                try {
-                    session.sendMessage(new TextMessage(MAPPER.writeValueAsString(metrics)));
-                } catch (IOException e) {
-                    log.warn("IOException while sending ws message", e);
+            final Set<SessionOutbox> subscribers = sessionMap.get(key);
+            if(subscribers == null || subscribers.isEmpty()) {
+                return;
+            }
+            // Projected and encoded once per distinct view, sessions with the same view share the payload
+            final Map<MetricView, Projection> projections = new HashMap<>();
+            TopItems.Baseline baseline = null;
+            for (SessionOutbox outbox : subscribers) {
+                final MetricView view = outbox.getView(key);
+                Projection projection = projections.get(view);
+                if(projection == null) {
+                    if(view.top() != null && baseline == null) {
+                        baseline = baselines.computeIfAbsent(key, ignored -> new TopItems.Baseline(isCumulative(event)));
+                        baseline.rankAgainst(previous);
+                    }
+                    projection = new Projection(view.apply(event.getMetric(), baseline));
+                    projections.put(view, projection);
+                }
+                final BinaryMetricEncoder encoder = outbox.getBinaryEncoder();
+                if(encoder != null) {
+                    final List<FactorioMetric> metrics = projection.metrics;
+                    outbox.offer(() -> encoder.encode(event.getSeries(), event.getResolution().identifier(), metrics));
+                    continue;
+                }
+                if(projection.text == null) {
+                    final Metrics data = new Metrics(event.getSeries(), event.getResolution().identifier(), List.of(pack(projection.metrics.get(0))));
+                    projection.text = new TextMessage(MAPPER.writeValueAsString(data));
                 }
+                outbox.offer(projection.text);
             }
+        } catch (IOException e) {
+            log.warn("Unable to encode {}", event, e);
         } finally {
             sessionMapLock.readLock().unlock();
         }
     }
 
+    private boolean isCumulative(MetricEvent event) {
+        final FactorioTimeSeriesRepository repository = timeSeriesRepositoryMap.get(event.getSeries());
+        return repository == null || repository.getAggregator(event.getResolution()).isCumulative();
+    }
+
     protected MetricEventData pack(FactorioMetric metric) {
-        Map<String, AtomicLong> data = new HashMap<>();
-        for (Map.Entry<String, Long> entry : metric.getData().entrySet()) {
-            String key;
-            long value;
-            if(entry.getKey().startsWith("in_")) {
-                key = entry.getKey().substring(3);
-                value = entry.getValue();
-            } else if(entry.getKey().startsWith("out_")) {
-                key = entry.getKey().substring(4);
-                value = -entry.getValue();
-            } else {
-                throw new IllegalArgumentException();
-            }
-            data.computeIfAbsent(key, ignored -> new AtomicLong(0)).addAndGet(value);
+        return new MetricEventData(metric);
+    }
+
+    private static class Projection {
+
+        private final List<FactorioMetric> metrics;
+        private TextMessage text;
+
+        Projection(FactorioMetric metric) {
+            this.metrics = List.of(metric);
         }
-        return new MetricEventData(
-                metric.getGameTick(),
-                data.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().get())));
+
     }
 
     @Getter
@@ -158,6 +266,13 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
 
     }
 
+    public enum OverflowPolicy {
+        /** Make room by discarding the oldest queued message */
+        DROP_OLDEST,
+        /** Close the session, the client has to reconnect and resubscribe */
+        DISCONNECT
+    }
+
     @Getter
     protected static class SubscribeCommand {
 
@@ -165,6 +280,14 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
         private String stream;
         private String resolution;
         private long maxHistory;
+        /** Switches the session to binary frames, see {@link BinaryMetricEncoder} */
+        private boolean binary;
+        /** Item names and {@code prefix*} patterns to send, all items if empty */
+        private List<String> items;
+        /** Only send this many items with the highest throughput per metric, all if not positive */
+        private int top;
+        /** What the top items are ranked by, one of {@link TopItems.Ranking} */
+        private String rankBy = "net";
 
         @Override
         public String toString() {
@@ -173,16 +296,40 @@ public class WebSocketHandler extends TextWebSocketHandler implements Applicatio
                     ", stream='" + stream + '\'' +
                     ", resolution='" + resolution + '\'' +
                     ", maxHistory=" + maxHistory +
+                    ", binary=" + binary +
+                    ", items=" + items +
+                    ", top=" + top +
+                    ", rankBy='" + rankBy + '\'' +
                     '}';
         }
     }
 
+    /**
+     * Serialises to {@code {"gameTick": ..., "values": {"<item>": consumed - produced, ...}}} straight from the
+     * metric's arrays.
+     */
     @Getter
     @AllArgsConstructor
-    protected static class MetricEventData {
+    protected static class MetricEventData extends JsonSerializable.Base {
+
+        private final FactorioMetric metric;
+
+        @Override
+        public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("gameTick", metric.getGameTick());
+            generator.writeObjectFieldStart("values");
+            for (int i = 0; i < metric.size(); i++) {
+                generator.writeNumberField(ItemRegistry.nameOf(metric.getItemId(i)), metric.getConsumed(i) - metric.getProduced(i));
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
 
-        private final long gameTick;
-        private final Map<String, Long> values;
+        @Override
+        public void serializeWithType(JsonGenerator generator, SerializerProvider serializers, TypeSerializer typeSerializer) throws IOException {
+            serialize(generator, serializers);
+        }
 
     }
 
@@ -2,20 +2,44 @@ package de.angermueller.factorio.domain;
 
 import lombok.Getter;
 
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
-@Getter
+/**
+ * Counters of a single point in time as parallel arrays: the item at position i has the id {@code itemIds[i]} in the
+ * {@link ItemRegistry} and the counters {@code consumed[i]} and {@code produced[i]}. Every item occurs at most once.
+ */
 public class FactorioMetric implements Comparable<FactorioMetric> {
 
+    @Getter
     private final long gameTick;
-    private final Map<String, Long> data;
+    private final int[] itemIds;
+    private final long[] consumed;
+    private final long[] produced;
 
-    public FactorioMetric(long gameTick, Map<String, Long> data) {
+    public FactorioMetric(long gameTick, int[] itemIds, long[] consumed, long[] produced) {
         assert gameTick >= 0;
-        assert data != null;
+        assert itemIds != null && consumed != null && produced != null;
+        assert itemIds.length == consumed.length && itemIds.length == produced.length;
         this.gameTick = gameTick;
-        this.data = data;
+        this.itemIds = itemIds;
+        this.consumed = consumed;
+        this.produced = produced;
+    }
+
+    public int size() {
+        return itemIds.length;
+    }
+
+    public int getItemId(int index) {
+        return itemIds[index];
+    }
+
+    public long getConsumed(int index) {
+        return consumed[index];
+    }
+
+    public long getProduced(int index) {
+        return produced[index];
     }
 
     @Override
@@ -23,15 +47,94 @@ public class FactorioMetric implements Comparable<FactorioMetric> {
         return Long.compare(gameTick, o.gameTick);
     }
 
-    public Set<String> getDimensions() {
-        return data.keySet();
-    }
-
     @Override
     public String toString() {
         return "FactorioMetric{" +
                 "gameTick=" + gameTick +
-                ", data=<" + data.size() + " pairs>" +
+                ", data=<" + itemIds.length + " items>" +
                 '}';
     }
+
+    /**
+     * Reusable builder that collects counters by item id.
+     */
+    public static class Builder {
+
+        private int[] slotById = new int[0];
+        private int[] itemIds = new int[64];
+        private long[] consumed = new long[64];
+        private long[] produced = new long[64];
+        private int size = 0;
+
+        private int slot(int itemId) {
+            if(itemId >= slotById.length) {
+                final int oldLength = slotById.length;
+                slotById = Arrays.copyOf(slotById, Math.max(itemId + 1, ItemRegistry.size()));
+                Arrays.fill(slotById, oldLength, slotById.length, -1);
+            }
+            int slot = slotById[itemId];
+            if(slot == -1) {
+                if(size == itemIds.length) {
+                    itemIds = Arrays.copyOf(itemIds, size * 2);
+                    consumed = Arrays.copyOf(consumed, size * 2);
+                    produced = Arrays.copyOf(produced, size * 2);
+                }
+                slot = size++;
+                slotById[itemId] = slot;
+                itemIds[slot] = itemId;
+                consumed[slot] = 0L;
+                produced[slot] = 0L;
+            }
+            return slot;
+        }
+
+        public Builder setConsumed(int itemId, long value) {
+            // Resolve the slot first, it may replace the arrays
+            final int slot = slot(itemId);
+            consumed[slot] = value;
+            return this;
+        }
+
+        public Builder setProduced(int itemId, long value) {
+            final int slot = slot(itemId);
+            produced[slot] = value;
+            return this;
+        }
+
+        public Builder set(int itemId, long consumed, long produced) {
+            final int slot = slot(itemId);
+            this.consumed[slot] = consumed;
+            this.produced[slot] = produced;
+            return this;
+        }
+
+        /**
+         * Keeps the larger of the current and the given counters.
+         */
+        public Builder max(int itemId, long consumed, long produced) {
+            final int slot = slot(itemId);
+            this.consumed[slot] = Math.max(this.consumed[slot], consumed);
+            this.produced[slot] = Math.max(this.produced[slot], produced);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Creates the metric and resets the builder.
+         */
+        public FactorioMetric build(long gameTick) {
+            final FactorioMetric metric = new FactorioMetric(gameTick,
+                    Arrays.copyOf(itemIds, size), Arrays.copyOf(consumed, size), Arrays.copyOf(produced, size));
+            for (int i = 0; i < size; i++) {
+                slotById[itemIds[i]] = -1;
+            }
+            size = 0;
+            return metric;
+        }
+
+    }
+
 }
@@ -0,0 +1,108 @@
+package de.angermueller.factorio.domain;
+
+import java.util.*;
+
+/**
+ * Selection of items by exact names and prefix patterns ({@code "copper-*"}), compiled into a bitset over the
+ * {@link ItemRegistry} ids. Items registered later are matched the first time they show up.
+ */
+public final class ItemFilter {
+
+    private final Set<String> names = new HashSet<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<String> patterns;
+    private final BitSet matching = new BitSet();
+    private int evaluatedIds = 0;
+
+    private ItemFilter(Collection<String> patterns) {
+        for (String pattern : patterns) {
+            if(pattern.endsWith("*")) {
+                prefixes.add(pattern.substring(0, pattern.length() - 1));
+            } else {
+                names.add(pattern);
+            }
+        }
+        this.patterns = patterns.stream().sorted().distinct().toList();
+    }
+
+    /**
+     * Returns the filter or null if the patterns select every item.
+     */
+    public static ItemFilter of(Collection<String> patterns) {
+        if(patterns == null || patterns.isEmpty() || patterns.contains("*")) {
+            return null;
+        }
+        return new ItemFilter(patterns);
+    }
+
+    public synchronized boolean matches(int itemId) {
+        if(itemId >= evaluatedIds) {
+            final int size = ItemRegistry.size();
+            for (int id = evaluatedIds; id < size; id++) {
+                if(matches(ItemRegistry.nameOf(id))) {
+                    matching.set(id);
+                }
+            }
+            evaluatedIds = size;
+        }
+        return matching.get(itemId);
+    }
+
+    private boolean matches(String name) {
+        if(names.contains(name)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if(name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the metric with only the matching items, the metric itself if all of them match.
+     */
+    public FactorioMetric project(FactorioMetric metric) {
+        int count = 0;
+        for (int i = 0; i < metric.size(); i++) {
+            if(matches(metric.getItemId(i))) {
+                count++;
+            }
+        }
+        if(count == metric.size()) {
+            return metric;
+        }
+        final int[] itemIds = new int[count];
+        final long[] consumed = new long[count];
+        final long[] produced = new long[count];
+        int j = 0;
+        for (int i = 0; i < metric.size(); i++) {
+            if(matches(metric.getItemId(i))) {
+                itemIds[j] = metric.getItemId(i);
+                consumed[j] = metric.getConsumed(i);
+                produced[j] = metric.getProduced(i);
+                j++;
+            }
+        }
+        return new FactorioMetric(metric.getGameTick(), itemIds, consumed, produced);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return patterns.equals(((ItemFilter) o).patterns);
+    }
+
+    @Override
+    public int hashCode() {
+        return patterns.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ItemFilter" + patterns;
+    }
+
+}
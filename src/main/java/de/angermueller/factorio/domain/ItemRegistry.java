@@ -0,0 +1,60 @@
+package de.angermueller.factorio.domain;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide mapping of item names to dense int ids, so metrics can be stored in primitive arrays indexed by item.
+ * Ids are only valid within the running process, anything persisted refers to items by name.
+ */
+public final class ItemRegistry {
+
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[1024];
+    private static volatile int size = 0;
+
+    private ItemRegistry() {
+    }
+
+    public static int idOf(String name) {
+        assert name != null;
+        final Integer id = IDS.get(name);
+        if(id != null) {
+            return id;
+        }
+        return register(name);
+    }
+
+    private static synchronized int register(String name) {
+        final Integer id = IDS.get(name);
+        if(id != null) {
+            return id;
+        }
+        String[] names = ItemRegistry.names;
+        if(size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        final int newId = size;
+        names[newId] = name;
+        ItemRegistry.names = names;
+        size = newId + 1;
+        IDS.put(name, newId);
+        return newId;
+    }
+
+    public static String nameOf(int id) {
+        if(id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown item id " + id);
+        }
+        return names[id];
+    }
+
+    /**
+     * Number of registered items, all ids are below this value.
+     */
+    public static int size() {
+        return size;
+    }
+
+}
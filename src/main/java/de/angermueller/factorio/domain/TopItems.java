@@ -0,0 +1,176 @@
+package de.angermueller.factorio.domain;
+
+import java.util.Arrays;
+
+/**
+ * Selects the k items with the highest throughput of a metric. For counter readings that is the largest change of
+ * their counters since the previous metric, values that already are throughputs (e.g. rates) are ranked as they are.
+ * Selection runs in a single pass with a bounded min-heap of k entries.
+ */
+public record TopItems(int k, Ranking ranking) {
+
+    public TopItems {
+        assert k > 0;
+        assert ranking != null;
+    }
+
+    /**
+     * Returns the metric with only the top k items in descending order of their score, the metric itself if it has
+     * no more than k items.
+     *
+     * @param baseline What the items are ranked against, without one the values themselves are ranked
+     */
+    public FactorioMetric select(FactorioMetric metric, Baseline baseline) {
+        if(metric.size() <= k) {
+            return metric;
+        }
+        if(baseline == null) {
+            baseline = new Baseline(false);
+        }
+        // Min-heap of the best k seen so far, the root is the one to replace next
+        final int[] heap = baseline.heap(k);
+        final long[] scores = baseline.scores;
+        int size = 0;
+        for (int i = 0; i < metric.size(); i++) {
+            final int id = metric.getItemId(i);
+            final long score = ranking.score(metric.getConsumed(i) - baseline.consumed(id), metric.getProduced(i) - baseline.produced(id));
+            if(size < k) {
+                heap[size] = i;
+                scores[size] = score;
+                siftUp(heap, scores, size++);
+            } else if(score > scores[0]) {
+                heap[0] = i;
+                scores[0] = score;
+                siftDown(heap, scores, size);
+            }
+        }
+        final int[] itemIds = new int[size];
+        final long[] consumed = new long[size];
+        final long[] produced = new long[size];
+        for (int j = size - 1; j >= 0; j--) {
+            final int i = heap[0];
+            itemIds[j] = metric.getItemId(i);
+            consumed[j] = metric.getConsumed(i);
+            produced[j] = metric.getProduced(i);
+            heap[0] = heap[j];
+            scores[0] = scores[j];
+            siftDown(heap, scores, j);
+        }
+        return new FactorioMetric(metric.getGameTick(), itemIds, consumed, produced);
+    }
+
+    private static void siftUp(int[] heap, long[] scores, int pos) {
+        while (pos > 0) {
+            final int parent = (pos - 1) >>> 1;
+            if(scores[parent] <= scores[pos]) {
+                return;
+            }
+            swap(heap, scores, parent, pos);
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, long[] scores, int size) {
+        int pos = 0;
+        while (true) {
+            final int left = 2 * pos + 1;
+            if(left >= size) {
+                return;
+            }
+            final int smallest = left + 1 < size && scores[left + 1] < scores[left] ? left + 1 : left;
+            if(scores[pos] <= scores[smallest]) {
+                return;
+            }
+            swap(heap, scores, pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, long[] scores, int a, int b) {
+        final int item = heap[a];
+        heap[a] = heap[b];
+        heap[b] = item;
+        final long score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+
+    /**
+     * Counters of the previous metric of a series and resolution, by item id, and the heap's scratch space. Reused
+     * from metric to metric, so ranking doesn't allocate per metric. Not thread safe.
+     */
+    public static class Baseline {
+
+        private final boolean cumulative;
+        private FactorioMetric previous;
+        private long[] previousConsumed = new long[0];
+        private long[] previousProduced = new long[0];
+        private int[] heap = new int[0];
+        private long[] scores = new long[0];
+
+        /**
+         * @param cumulative Whether the values are counter readings, only then items are ranked by their change
+         */
+        public Baseline(boolean cumulative) {
+            this.cumulative = cumulative;
+        }
+
+        /**
+         * Makes the given metric the one the next is ranked against, nothing to do if it already is.
+         */
+        public void rankAgainst(FactorioMetric metric) {
+            if(!cumulative || metric == previous) {
+                return;
+            }
+            for (int i = 0; previous != null && i < previous.size(); i++) {
+                previousConsumed[previous.getItemId(i)] = 0L;
+                previousProduced[previous.getItemId(i)] = 0L;
+            }
+            previous = metric;
+            for (int i = 0; metric != null && i < metric.size(); i++) {
+                final int id = metric.getItemId(i);
+                if(id >= previousConsumed.length) {
+                    previousConsumed = Arrays.copyOf(previousConsumed, Math.max(id + 1, ItemRegistry.size()));
+                    previousProduced = Arrays.copyOf(previousProduced, previousConsumed.length);
+                }
+                previousConsumed[id] = metric.getConsumed(i);
+                previousProduced[id] = metric.getProduced(i);
+            }
+        }
+
+        private long consumed(int id) {
+            return id < previousConsumed.length ? previousConsumed[id] : 0L;
+        }
+
+        private long produced(int id) {
+            return id < previousProduced.length ? previousProduced[id] : 0L;
+        }
+
+        private int[] heap(int k) {
+            if(heap.length < k) {
+                heap = new int[k];
+                scores = new long[k];
+            }
+            return heap;
+        }
+
+    }
+
+    public enum Ranking {
+        /** Items produced, since the previous metric for counter readings */
+        PRODUCED,
+        /** Items consumed, since the previous metric for counter readings */
+        CONSUMED,
+        /** Magnitude of produced minus consumed, surpluses and deficits rank alike */
+        NET;
+
+        long score(long consumed, long produced) {
+            return switch (this) {
+                case PRODUCED -> produced;
+                case CONSUMED -> consumed;
+                case NET -> Math.abs(produced - consumed);
+            };
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package de.angermueller.factorio.event;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published whenever the collection from a server changes its state.
+ */
+@Getter
+public class CollectorStateEvent extends ApplicationEvent {
+
+    private final String server;
+    private final State state;
+    /** Game updates per second measured between the last two collections */
+    private final double ups;
+    /** Delay until the next collection attempt */
+    private final long nextCollectionMillis;
+    /** Failed attempts in a row, zero unless unreachable */
+    private final int failures;
+
+    public CollectorStateEvent(Object source, String server, State state, double ups, long nextCollectionMillis, int failures) {
+        super(source);
+        this.server = server;
+        this.state = state;
+        this.ups = ups;
+        this.nextCollectionMillis = nextCollectionMillis;
+        this.failures = failures;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectorStateEvent{" +
+                "server='" + server + '\'' +
+                ", state=" + state +
+                ", ups=" + ups +
+                ", nextCollectionMillis=" + nextCollectionMillis +
+                ", failures=" + failures +
+                '}';
+    }
+
+    public enum State {
+        /** The game is running, collections follow its pace */
+        RUNNING,
+        /** The game is paused, polled at the paused interval */
+        PAUSED,
+        /** Collections fail, retried with exponential backoff */
+        UNREACHABLE
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.angermueller.factorio.repository;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the open buckets of a series, so a restart does not have to rebuild them from stored values.
+ * The file is replaced atomically, a crash while writing leaves the previous snapshot in place.
+ */
+final class AccumulatorCheckpoint {
+
+    private static final int MAGIC = 0x46424350;
+    private static final int VERSION = 1;
+
+    private AccumulatorCheckpoint() {
+    }
+
+    static void write(Path file, String seriesName, List<Entry> entries) throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        if(file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(seriesName);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.resolution());
+                out.writeLong(entry.lastStoredTick());
+                entry.accumulator().writeTo(out);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the entries by resolution identifier, empty if there is no snapshot of the series.
+     */
+    static Map<String, Entry> read(Path file, String seriesName) throws IOException {
+        final Map<String, Entry> entries = new HashMap<>();
+        if(!Files.exists(file)) {
+            return entries;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported checkpoint " + file);
+            }
+            if(!in.readUTF().equals(seriesName)) {
+                throw new IOException("Checkpoint " + file + " belongs to another series");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String resolution = in.readUTF();
+                final long lastStoredTick = in.readLong();
+                final BucketAccumulator accumulator = new BucketAccumulator();
+                accumulator.readFrom(in);
+                entries.put(resolution, new Entry(resolution, lastStoredTick, accumulator));
+            }
+        }
+        return entries;
+    }
+
+    record Entry(String resolution, long lastStoredTick, BucketAccumulator accumulator) {
+
+    }
+
+}
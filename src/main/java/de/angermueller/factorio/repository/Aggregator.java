@@ -0,0 +1,66 @@
+package de.angermueller.factorio.repository;
+
+/**
+ * Computes the persisted value of a counter from the summary of a closed bucket. Repositories keep the summary up to
+ * date while samples arrive, so aggregators run once per bucket and counter at write time.
+ *
+ * @see Aggregators
+ */
+public interface Aggregator {
+
+    String identifier();
+
+    /**
+     * @param bucket      Summary of the samples of the closed bucket
+     * @param column      Counter of the bucket to aggregate
+     * @param bucketTicks Width of the bucket
+     */
+    long aggregate(Bucket bucket, int column, long bucketTicks);
+
+    /**
+     * Whether the aggregated values are still counter readings, like the last or largest reading of the bucket, so
+     * the throughput between two buckets is their difference. Rates and the like are throughputs themselves.
+     */
+    default boolean isCumulative() {
+        return false;
+    }
+
+    /**
+     * Whether the aggregate is one of the bucket's readings, like its last or largest one. Aggregating such values
+     * again gives the same as aggregating the readings they were picked from, so stored buckets can stand in for the
+     * samples of a coarser bucket.
+     */
+    default boolean isIdempotent() {
+        return false;
+    }
+
+    /**
+     * Summary of the samples a counter had within a bucket.
+     */
+    interface Bucket {
+
+        long first(int column);
+
+        long last(int column);
+
+        long min(int column);
+
+        long max(int column);
+
+        long sum(int column);
+
+        long count(int column);
+
+        /**
+         * Whether the counter had a value in the bucket right before this one.
+         */
+        boolean hasPrevious(int column);
+
+        /**
+         * Last value of the counter before this bucket, only valid if {@link #hasPrevious(int)}.
+         */
+        long previous(int column);
+
+    }
+
+}
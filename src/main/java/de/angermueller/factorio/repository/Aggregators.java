@@ -0,0 +1,83 @@
+package de.angermueller.factorio.repository;
+
+import java.util.Map;
+
+/**
+ * Built-in {@link Aggregator}s.
+ */
+public final class Aggregators {
+
+    public static final Aggregator LAST = new SimpleAggregator("last", true, true, (bucket, column, ticks) -> bucket.last(column));
+    public static final Aggregator MAX = new SimpleAggregator("max", true, true, (bucket, column, ticks) -> bucket.max(column));
+    public static final Aggregator MIN = new SimpleAggregator("min", true, true, (bucket, column, ticks) -> bucket.min(column));
+    public static final Aggregator SUM = new SimpleAggregator("sum", false, false, (bucket, column, ticks) -> bucket.sum(column));
+    public static final Aggregator MEAN = new SimpleAggregator("mean", false, false, (bucket, column, ticks) -> bucket.sum(column) / bucket.count(column));
+    public static final Aggregator RATE_PER_SECOND = rate("rate_per_second", 60L);
+    public static final Aggregator RATE_PER_MINUTE = rate("rate_per_minute", 60L * 60L);
+
+    private static final Map<String, Aggregator> BY_IDENTIFIER = Map.of(
+            LAST.identifier(), LAST,
+            MAX.identifier(), MAX,
+            MIN.identifier(), MIN,
+            SUM.identifier(), SUM,
+            MEAN.identifier(), MEAN,
+            RATE_PER_SECOND.identifier(), RATE_PER_SECOND,
+            RATE_PER_MINUTE.identifier(), RATE_PER_MINUTE
+    );
+
+    private Aggregators() {
+    }
+
+    /**
+     * Increase of a cumulative counter over the bucket, scaled from the bucket width to the given number of ticks.
+     * The increase is taken from the last value in the bucket before, or from the bucket's first value for a new counter
+     * and after a gap, an increase over a gap would otherwise show up as a spike in the bucket after it.
+     */
+    public static Aggregator rate(String identifier, long perTicks) {
+        assert perTicks > 0;
+        return new SimpleAggregator(identifier, false, false, (bucket, column, ticks) -> {
+            final long start = bucket.hasPrevious(column) ? bucket.previous(column) : bucket.first(column);
+            return (bucket.last(column) - start) * perTicks / ticks;
+        });
+    }
+
+    public static Aggregator of(String identifier) {
+        final Aggregator aggregator = BY_IDENTIFIER.get(identifier);
+        if(aggregator == null) {
+            throw new IllegalArgumentException("Unknown aggregator '" + identifier + "', known are " + BY_IDENTIFIER.keySet());
+        }
+        return aggregator;
+    }
+
+    private record SimpleAggregator(String identifier, boolean cumulative, boolean idempotent, Function function) implements Aggregator {
+
+        @Override
+        public long aggregate(Bucket bucket, int column, long bucketTicks) {
+            return function.apply(bucket, column, bucketTicks);
+        }
+
+        @Override
+        public boolean isCumulative() {
+            return cumulative;
+        }
+
+        @Override
+        public boolean isIdempotent() {
+            return idempotent;
+        }
+
+        @Override
+        public String toString() {
+            return identifier;
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface Function {
+
+        long apply(Aggregator.Bucket bucket, int column, long bucketTicks);
+
+    }
+
+}
@@ -0,0 +1,281 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Aggregation state of the open bucket of a resolution. Every item has a consumed (2 * id) and a produced
+ * (2 * id + 1) column holding the summary of its samples in the bucket, so adding a sample costs O(1) per item and
+ * the state never grows beyond the number of items, however long the bucket is. The last value of each column is
+ * carried over into the next bucket for rate-like aggregations, as long as no bucket without a value of the column
+ * lies between them. Summaries are mergeable, so a closed bucket can be
+ * rolled up into the bucket of a coarser resolution.
+ */
+class BucketAccumulator implements Aggregator.Bucket {
+
+    private long[] first = new long[0];
+    private long[] last = new long[0];
+    private long[] min = new long[0];
+    private long[] max = new long[0];
+    private long[] sum = new long[0];
+    private long[] count = new long[0];
+    private long[] previous = new long[0];
+    private boolean[] hasPrevious = new boolean[0];
+    /** Number of the bucket the previous value was carried over from */
+    private long[] previousBucket = new long[0];
+    /** Number of the open bucket */
+    private long bucket = 0L;
+    private boolean[] present = new boolean[0];
+    private int[] presentIds = new int[64];
+    private int size = 0;
+
+    void add(FactorioMetric metric) {
+        for (int i = 0; i < metric.size(); i++) {
+            final int itemId = metric.getItemId(i);
+            ensureCapacity(itemId);
+            if(!present[itemId]) {
+                present[itemId] = true;
+                if(size == presentIds.length) {
+                    presentIds = Arrays.copyOf(presentIds, size * 2);
+                }
+                presentIds[size++] = itemId;
+            }
+            add(2 * itemId, metric.getConsumed(i));
+            add(2 * itemId + 1, metric.getProduced(i));
+        }
+    }
+
+    private void add(int column, long value) {
+        if(count[column] == 0L) {
+            first[column] = value;
+            min[column] = value;
+            max[column] = value;
+            sum[column] = value;
+        } else {
+            min[column] = Math.min(min[column], value);
+            max[column] = Math.max(max[column], value);
+            sum[column] += value;
+        }
+        last[column] = value;
+        count[column]++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the summaries of a closed finer bucket, as if its samples were added one by one.
+     */
+    void merge(BucketAccumulator other) {
+        for (int i = 0; i < other.size; i++) {
+            final int itemId = other.presentIds[i];
+            ensureCapacity(itemId);
+            if(!present[itemId]) {
+                present[itemId] = true;
+                if(size == presentIds.length) {
+                    presentIds = Arrays.copyOf(presentIds, size * 2);
+                }
+                presentIds[size++] = itemId;
+            }
+            merge(2 * itemId, other);
+            merge(2 * itemId + 1, other);
+        }
+    }
+
+    private void merge(int column, BucketAccumulator other) {
+        if(other.count[column] == 0L) {
+            return;
+        }
+        if(count[column] == 0L) {
+            first[column] = other.first[column];
+            min[column] = other.min[column];
+            max[column] = other.max[column];
+            sum[column] = other.sum[column];
+        } else {
+            min[column] = Math.min(min[column], other.min[column]);
+            max[column] = Math.max(max[column], other.max[column]);
+            sum[column] += other.sum[column];
+        }
+        last[column] = other.last[column];
+        count[column] += other.count[column];
+    }
+
+    /**
+     * Creates the metric of the bucket, the state is left untouched until {@link #reset()}.
+     */
+    FactorioMetric aggregate(long gameTick, Aggregator aggregator, long bucketTicks) {
+        final int[] itemIds = Arrays.copyOf(presentIds, size);
+        final long[] metricConsumed = new long[size];
+        final long[] metricProduced = new long[size];
+        for (int i = 0; i < size; i++) {
+            metricConsumed[i] = aggregator.aggregate(this, 2 * itemIds[i], bucketTicks);
+            metricProduced[i] = aggregator.aggregate(this, 2 * itemIds[i] + 1, bucketTicks);
+        }
+        return new FactorioMetric(gameTick, itemIds, metricConsumed, metricProduced);
+    }
+
+    /**
+     * Starts the next bucket, carrying over the last values.
+     */
+    void reset() {
+        final long closed = bucket++;
+        for (int i = 0; i < size; i++) {
+            final int itemId = presentIds[i];
+            for (int column = 2 * itemId; column <= 2 * itemId + 1; column++) {
+                if(count[column] > 0L) {
+                    previous[column] = last[column];
+                    hasPrevious[column] = true;
+                    previousBucket[column] = closed;
+                    count[column] = 0L;
+                }
+            }
+            present[itemId] = false;
+        }
+        size = 0;
+    }
+
+    /**
+     * Skips the given number of empty buckets, the values carried over are too old for the bucket after them.
+     */
+    void skip(long buckets) {
+        assert buckets >= 0L;
+        bucket += buckets;
+    }
+
+    /**
+     * Writes the state of every item with a summary or a carried value. Items are written by name, their ids are
+     * only valid within this process.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        int items = 0;
+        for (int itemId = 0; itemId < present.length; itemId++) {
+            if(present[itemId] || hasPrevious(2 * itemId) || hasPrevious(2 * itemId + 1)) {
+                items++;
+            }
+        }
+        out.writeInt(items);
+        for (int itemId = 0; itemId < present.length; itemId++) {
+            if(present[itemId] || hasPrevious(2 * itemId) || hasPrevious(2 * itemId + 1)) {
+                out.writeUTF(ItemRegistry.nameOf(itemId));
+                writeColumn(out, 2 * itemId);
+                writeColumn(out, 2 * itemId + 1);
+            }
+        }
+    }
+
+    private void writeColumn(DataOutput out, int column) throws IOException {
+        out.writeLong(count[column]);
+        if(count[column] > 0L) {
+            out.writeLong(first[column]);
+            out.writeLong(last[column]);
+            out.writeLong(min[column]);
+            out.writeLong(max[column]);
+            out.writeLong(sum[column]);
+        }
+        out.writeBoolean(hasPrevious(column));
+        if(hasPrevious(column)) {
+            out.writeLong(previous[column]);
+        }
+    }
+
+    /**
+     * Replaces the state with the one written by {@link #writeTo(DataOutput)}.
+     */
+    void readFrom(DataInput in) throws IOException {
+        reset();
+        Arrays.fill(hasPrevious, false);
+        final int items = in.readInt();
+        for (int i = 0; i < items; i++) {
+            final int itemId = ItemRegistry.idOf(in.readUTF());
+            ensureCapacity(itemId);
+            readColumn(in, 2 * itemId);
+            readColumn(in, 2 * itemId + 1);
+            if(count[2 * itemId] > 0L || count[2 * itemId + 1] > 0L) {
+                present[itemId] = true;
+                if(size == presentIds.length) {
+                    presentIds = Arrays.copyOf(presentIds, size * 2);
+                }
+                presentIds[size++] = itemId;
+            }
+        }
+    }
+
+    private void readColumn(DataInput in, int column) throws IOException {
+        count[column] = in.readLong();
+        if(count[column] > 0L) {
+            first[column] = in.readLong();
+            last[column] = in.readLong();
+            min[column] = in.readLong();
+            max[column] = in.readLong();
+            sum[column] = in.readLong();
+        }
+        hasPrevious[column] = in.readBoolean();
+        if(hasPrevious[column]) {
+            previous[column] = in.readLong();
+            previousBucket[column] = bucket - 1;
+        }
+    }
+
+    private void ensureCapacity(int itemId) {
+        if(itemId >= present.length) {
+            final int length = Math.max(itemId + 1, present.length * 2);
+            first = Arrays.copyOf(first, 2 * length);
+            last = Arrays.copyOf(last, 2 * length);
+            min = Arrays.copyOf(min, 2 * length);
+            max = Arrays.copyOf(max, 2 * length);
+            sum = Arrays.copyOf(sum, 2 * length);
+            count = Arrays.copyOf(count, 2 * length);
+            previous = Arrays.copyOf(previous, 2 * length);
+            hasPrevious = Arrays.copyOf(hasPrevious, 2 * length);
+            previousBucket = Arrays.copyOf(previousBucket, 2 * length);
+            present = Arrays.copyOf(present, length);
+        }
+    }
+
+    @Override
+    public long first(int column) {
+        return first[column];
+    }
+
+    @Override
+    public long last(int column) {
+        return last[column];
+    }
+
+    @Override
+    public long min(int column) {
+        return min[column];
+    }
+
+    @Override
+    public long max(int column) {
+        return max[column];
+    }
+
+    @Override
+    public long sum(int column) {
+        return sum[column];
+    }
+
+    @Override
+    public long count(int column) {
+        return count[column];
+    }
+
+    @Override
+    public boolean hasPrevious(int column) {
+        return hasPrevious[column] && previousBucket[column] == bucket - 1;
+    }
+
+    @Override
+    public long previous(int column) {
+        return previous[column];
+    }
+
+}
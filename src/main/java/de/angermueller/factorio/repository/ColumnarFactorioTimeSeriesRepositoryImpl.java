@@ -0,0 +1,80 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import jakarta.annotation.PreDestroy;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Stores every resolution of the series in its own {@link ColumnarSegmentStore} below
+ * {@code <directory>/<series>/<resolution>}, sharing the bucket aggregation with the SQL based repositories.
+ */
+public abstract class ColumnarFactorioTimeSeriesRepositoryImpl extends SQLFactorioTimeSeriesRepositoryImpl implements AutoCloseable {
+
+    private final Path directory;
+    private final Map<Resolution, ColumnarSegmentStore> storeMap = new HashMap<>();
+
+    public ColumnarFactorioTimeSeriesRepositoryImpl(Path directory, String seriesName, ApplicationEventPublisher applicationEventPublisher) {
+        super(seriesName, applicationEventPublisher);
+        assert directory != null;
+        this.directory = directory;
+    }
+
+    @Override
+    protected void ensureTable(Resolution resolution) throws IOException {
+        final ColumnarSegmentStore store = new ColumnarSegmentStore(directory.resolve(seriesName).resolve(resolution.identifier()));
+        store.open();
+        storeMap.put(resolution, store);
+    }
+
+    @Override
+    protected void doStoreValue(Resolution resolution, FactorioMetric metric) throws IOException {
+        final ColumnarSegmentStore store = storeMap.get(resolution);
+        store.append(metric);
+        store.sync();
+    }
+
+    /**
+     * Appends the whole batch and syncs every touched store once, like a commit.
+     */
+    @Override
+    protected void doStoreValues(List<PendingValue> values) throws IOException {
+        final Set<ColumnarSegmentStore> touched = new HashSet<>();
+        for (PendingValue value : values) {
+            final ColumnarSegmentStore store = storeMap.get(value.resolution());
+            store.append(value.metric());
+            touched.add(store);
+        }
+        for (ColumnarSegmentStore store : touched) {
+            store.sync();
+        }
+    }
+
+    @Override
+    protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResults) {
+        return storeMap.get(resolution).retrieve(afterTick, untilTick, maxResults);
+    }
+
+    @Override
+    protected Long retrieveLastTick(Resolution resolution) {
+        return storeMap.get(resolution).getLastTick();
+    }
+
+    @Override
+    protected void dropValuesBefore(Resolution resolution, long gameTick) throws IOException {
+        storeMap.get(resolution).dropSegmentsBefore(gameTick);
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        stopWriter();
+        for (ColumnarSegmentStore store : storeMap.values()) {
+            store.close();
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.util.VarInts;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Append-only storage of a single resolution of a series in memory mapped segment files.
+ * <p>
+ * Every item has a consumed and a produced column. A record stores each column as the zig-zag varint encoded delta
+ * of its delta (so steadily growing counters cost a single byte), with runs of unchanged deltas collapsed into their
+ * length. Keyframe records reset the delta state, one starts every segment and every {@value #KEYFRAME_INTERVAL}
+ * records, and the tick index lists all of them so reads can seek instead of decoding from the start.
+ * <p>
+ * Files: {@code items.dict} holds the item name of every column (one per line), {@code index.dat} the keyframes
+ * (tick, segment, offset, record ordinal) and {@code segment-<n>.dat} the records behind a header with the write
+ * position. Appended records only become durable with {@link #sync()}, which forces them to disk before the header is
+ * advanced, so after a crash the header never points past records that did not make it.
+ */
+@Slf4j
+class ColumnarSegmentStore implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int MAGIC = 0x46425453;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    private static final int KEYFRAME_INTERVAL = 128;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final byte FLAG_KEYFRAME = 1;
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private final Path directory;
+    private final int segmentSize;
+    private final NavigableMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+    // Columns, every item has two: 2 * column for consumed and 2 * column + 1 for produced
+    private final List<String> columnNames = new ArrayList<>();
+    private int[] itemIdByColumn = new int[64];
+    private int[] columnByItemId = new int[0];
+    // Keyframe index
+    private FileChannel indexChannel;
+    private long[] indexTicks = new long[64];
+    private int[] indexSegments = new int[64];
+    private int[] indexOffsets = new int[64];
+    private long[] indexOrdinals = new long[64];
+    private int indexSize = 0;
+    // Writer state
+    private final DeltaState writerState = new DeltaState();
+    private long[] values = new long[0];
+    private long recordCount = 0;
+    private int recordsSinceKeyframe = 0;
+    private Long lastTick = null;
+    /** End of the records in the latest segment, ahead of its header until the next {@link #sync()} */
+    private int appendPosition = -1;
+
+    ColumnarSegmentStore(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    ColumnarSegmentStore(Path directory, int segmentSize) {
+        assert directory != null;
+        assert segmentSize > HEADER_SIZE;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        final Path dictionary = directory.resolve("items.dict");
+        if(Files.exists(dictionary)) {
+            for (String name : Files.readAllLines(dictionary, StandardCharsets.UTF_8)) {
+                if(!name.isEmpty()) {
+                    addColumn(name);
+                }
+            }
+        }
+        try(Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                final Matcher matcher = SEGMENT_PATTERN.matcher(file.getFileName().toString());
+                if(matcher.matches()) {
+                    segments.put(Integer.parseInt(matcher.group(1)), map(file));
+                }
+            }
+        }
+        indexChannel = FileChannel.open(directory.resolve("index.dat"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(!segments.isEmpty()) {
+            appendPosition = persistedWritePosition(segments.lastEntry().getValue());
+        }
+        loadIndex();
+        recover();
+        log.debug("Opened {} with {} records in {} segments", directory, recordCount, segments.size());
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(buffer.getInt(0) == 0) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(WRITE_POSITION_OFFSET, HEADER_SIZE);
+            } else if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a segment file: " + file);
+            }
+            return buffer;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        final long entries = indexChannel.size() / INDEX_ENTRY_SIZE;
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < entries; i++) {
+            buffer.clear();
+            indexChannel.read(buffer, i * INDEX_ENTRY_SIZE);
+            buffer.flip();
+            final long tick = buffer.getLong();
+            final int segment = buffer.getInt();
+            final int offset = buffer.getInt();
+            final long ordinal = buffer.getLong();
+            final MappedByteBuffer segmentBuffer = segments.get(segment);
+            // Entries can be ahead of the data after a crash or point at dropped segments
+            if(segmentBuffer != null && offset < writePosition(segment)) {
+                addIndexEntry(tick, segment, offset, ordinal);
+            }
+        }
+        indexChannel.truncate((long) indexSize * INDEX_ENTRY_SIZE);
+        indexChannel.position(indexChannel.size());
+        if(indexSize == 0 && !segments.isEmpty() && writePosition(segments.firstKey()) > HEADER_SIZE) {
+            log.info("Rebuilding index of {}", directory);
+            rebuildIndex();
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        final Cursor cursor = new Cursor(segments.firstKey(), HEADER_SIZE);
+        long ordinal = 0;
+        while (cursor.next()) {
+            if(cursor.keyframe) {
+                appendIndexEntry(cursor.tick, cursor.recordSegment, cursor.recordOffset, ordinal);
+            }
+            ordinal++;
+        }
+    }
+
+    /**
+     * Restores the writer state by decoding everything behind the last keyframe.
+     */
+    private void recover() {
+        if(indexSize == 0) {
+            return;
+        }
+        final Cursor cursor = new Cursor(indexSegments[indexSize - 1], indexOffsets[indexSize - 1]);
+        long ordinal = indexOrdinals[indexSize - 1];
+        while (cursor.next()) {
+            ordinal++;
+            recordsSinceKeyframe = cursor.keyframe ? 1 : recordsSinceKeyframe + 1;
+            lastTick = cursor.tick;
+        }
+        recordCount = ordinal;
+        writerState.copyFrom(cursor.state);
+    }
+
+    synchronized Long getLastTick() {
+        return lastTick;
+    }
+
+    synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    synchronized void append(FactorioMetric metric) throws IOException {
+        if(lastTick != null && metric.getGameTick() <= lastTick) {
+            throw new IOException("Tick " + metric.getGameTick() + " is not after the last stored tick " + lastTick);
+        }
+        for (int i = 0; i < metric.size(); i++) {
+            columnOf(metric.getItemId(i));
+        }
+        final int valueCount = columnNames.size() * 2;
+        if(values.length < valueCount) {
+            values = new long[Math.max(valueCount, values.length * 2)];
+        }
+        Arrays.fill(values, 0, valueCount, 0L);
+        for (int i = 0; i < metric.size(); i++) {
+            final int column = columnOf(metric.getItemId(i));
+            values[2 * column] = metric.getConsumed(i);
+            values[2 * column + 1] = metric.getProduced(i);
+        }
+        // Worst case: flag, column count, tick and per value a run length and a delta
+        final long maxSize = 1 + 5 + VarInts.MAX_LONG_BYTES + (long) valueCount * (5 + VarInts.MAX_LONG_BYTES);
+        if(maxSize > segmentSize - HEADER_SIZE) {
+            throw new IOException("Record with " + metric.size() + " items does not fit into a segment");
+        }
+        Map.Entry<Integer, MappedByteBuffer> segment = segments.lastEntry();
+        if(segment == null || segmentSize - appendPosition < maxSize) {
+            // The full segment won't be touched again
+            sync();
+            final int number = segment == null ? 0 : segment.getKey() + 1;
+            segments.put(number, map(directory.resolve(String.format("segment-%08d.dat", number))));
+            segment = segments.lastEntry();
+            appendPosition = HEADER_SIZE;
+        }
+        final int offset = appendPosition;
+        final boolean keyframe = offset == HEADER_SIZE || recordsSinceKeyframe >= KEYFRAME_INTERVAL;
+        final ByteBuffer out = segment.getValue().duplicate().position(offset);
+        if(keyframe) {
+            writerState.reset();
+            out.put(FLAG_KEYFRAME);
+        } else {
+            out.put((byte) 0);
+        }
+        writerState.encode(out, metric.getGameTick(), values, valueCount);
+        appendPosition = out.position();
+        if(keyframe) {
+            appendIndexEntry(metric.getGameTick(), segment.getKey(), offset, recordCount);
+        }
+        recordsSinceKeyframe = keyframe ? 1 : recordsSinceKeyframe + 1;
+        recordCount++;
+        lastTick = metric.getGameTick();
+    }
+
+    /**
+     * Returns up to maxResults records in the tick range (afterTick, untilTick], the latest ones first.
+     */
+    synchronized List<FactorioMetric> retrieve(long afterTick, long untilTick, long maxResults) {
+        if(recordCount == 0 || maxResults <= 0 || untilTick <= afterTick || (lastTick != null && lastTick <= afterTick)) {
+            return new ArrayList<>();
+        }
+        // The records up to untilTick end before the keyframe following the last one at or before it
+        final int untilEntry = lastIndexEntry(indexTicks, untilTick);
+        if(untilEntry == -1) {
+            return new ArrayList<>();
+        }
+        final long endOrdinal = untilEntry + 1 < indexSize ? indexOrdinals[untilEntry + 1] : recordCount;
+        final long startOrdinal = Math.max(0L, endOrdinal - maxResults);
+        final int entry = Math.max(0, Math.max(lastIndexEntry(indexOrdinals, startOrdinal), lastIndexEntry(indexTicks, afterTick)));
+        final Cursor cursor = new Cursor(indexSegments[entry], indexOffsets[entry]);
+        long ordinal = indexOrdinals[entry];
+        final ArrayDeque<FactorioMetric> result = new ArrayDeque<>();
+        final FactorioMetric.Builder builder = new FactorioMetric.Builder();
+        while (ordinal < endOrdinal && cursor.next()) {
+            if(cursor.tick > untilTick) {
+                break;
+            }
+            if(ordinal >= startOrdinal && cursor.tick > afterTick) {
+                result.addFirst(cursor.toMetric(builder));
+                if(result.size() > maxResults) {
+                    result.removeLast();
+                }
+            }
+            ordinal++;
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Deletes the segments only holding records before the given tick, the latest segment is always kept. Returns
+     * the number of deleted segments.
+     */
+    synchronized int dropSegmentsBefore(long tick) throws IOException {
+        int dropped = 0;
+        while (segments.size() > 1) {
+            final int segment = segments.firstKey();
+            // Every segment starts with a keyframe, so the next one's first index entry is where this one ends
+            final int next = segments.higherKey(segment);
+            int entry = 0;
+            while (entry < indexSize && indexSegments[entry] != next) {
+                entry++;
+            }
+            if(entry == indexSize || indexTicks[entry] > tick) {
+                break;
+            }
+            segments.remove(segment);
+            Files.deleteIfExists(directory.resolve(String.format("segment-%08d.dat", segment)));
+            // Keep the index entries from the next segment on
+            indexSize -= entry;
+            System.arraycopy(indexTicks, entry, indexTicks, 0, indexSize);
+            System.arraycopy(indexSegments, entry, indexSegments, 0, indexSize);
+            System.arraycopy(indexOffsets, entry, indexOffsets, 0, indexSize);
+            System.arraycopy(indexOrdinals, entry, indexOrdinals, 0, indexSize);
+            dropped++;
+        }
+        if(dropped > 0) {
+            final ByteBuffer buffer = ByteBuffer.allocate(indexSize * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < indexSize; i++) {
+                buffer.putLong(indexTicks[i]).putInt(indexSegments[i]).putInt(indexOffsets[i]).putLong(indexOrdinals[i]);
+            }
+            buffer.flip();
+            indexChannel.truncate(0L);
+            indexChannel.position(0L);
+            while (buffer.hasRemaining()) {
+                indexChannel.write(buffer);
+            }
+            log.info("Dropped {} expired segments of {}", dropped, directory);
+        }
+        return dropped;
+    }
+
+    private int lastIndexEntry(long[] sortedValues, long maxValue) {
+        int low = 0;
+        int high = indexSize - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if(sortedValues[mid] <= maxValue) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private int columnOf(int itemId) throws IOException {
+        if(itemId < columnByItemId.length && columnByItemId[itemId] != -1) {
+            return columnByItemId[itemId];
+        }
+        final String name = ItemRegistry.nameOf(itemId);
+        Files.writeString(directory.resolve("items.dict"), name + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return addColumn(name);
+    }
+
+    private int addColumn(String name) {
+        final int column = columnNames.size();
+        final int itemId = ItemRegistry.idOf(name);
+        columnNames.add(name);
+        if(column == itemIdByColumn.length) {
+            itemIdByColumn = Arrays.copyOf(itemIdByColumn, column * 2);
+        }
+        itemIdByColumn[column] = itemId;
+        if(itemId >= columnByItemId.length) {
+            final int oldLength = columnByItemId.length;
+            columnByItemId = Arrays.copyOf(columnByItemId, Math.max(itemId + 1, ItemRegistry.size()));
+            Arrays.fill(columnByItemId, oldLength, columnByItemId.length, -1);
+        }
+        columnByItemId[itemId] = column;
+        return column;
+    }
+
+    private void appendIndexEntry(long tick, int segment, int offset, long ordinal) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(tick).putInt(segment).putInt(offset).putLong(ordinal).flip();
+        while (buffer.hasRemaining()) {
+            indexChannel.write(buffer);
+        }
+        addIndexEntry(tick, segment, offset, ordinal);
+    }
+
+    private void addIndexEntry(long tick, int segment, int offset, long ordinal) {
+        if(indexSize == indexTicks.length) {
+            indexTicks = Arrays.copyOf(indexTicks, indexSize * 2);
+            indexSegments = Arrays.copyOf(indexSegments, indexSize * 2);
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexOrdinals = Arrays.copyOf(indexOrdinals, indexSize * 2);
+        }
+        indexTicks[indexSize] = tick;
+        indexSegments[indexSize] = segment;
+        indexOffsets[indexSize] = offset;
+        indexOrdinals[indexSize] = ordinal;
+        indexSize++;
+    }
+
+    /**
+     * Makes the appended records durable: forces them to disk, then advances and forces the header.
+     */
+    synchronized void sync() {
+        if(segments.isEmpty()) {
+            return;
+        }
+        final MappedByteBuffer segment = segments.lastEntry().getValue();
+        final int persisted = persistedWritePosition(segment);
+        if(appendPosition == persisted) {
+            return;
+        }
+        segment.force(persisted, appendPosition - persisted);
+        segment.putLong(WRITE_POSITION_OFFSET, appendPosition);
+        segment.force(0, HEADER_SIZE);
+    }
+
+    /**
+     * End of the records of a segment as far as readers are concerned, including the ones not synced yet.
+     */
+    private int writePosition(int segment) {
+        return segment == segments.lastKey() ? appendPosition : persistedWritePosition(segments.get(segment));
+    }
+
+    private static int persistedWritePosition(MappedByteBuffer segment) {
+        return (int) segment.getLong(WRITE_POSITION_OFFSET);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+        segments.clear();
+        if(indexChannel != null) {
+            indexChannel.force(true);
+            indexChannel.close();
+            indexChannel = null;
+        }
+    }
+
+    /**
+     * Delta of delta state of the tick and all value columns.
+     */
+    private static class DeltaState {
+
+        private long tick;
+        private long tickDelta;
+        private long[] values = new long[0];
+        private long[] deltas = new long[0];
+
+        void reset() {
+            tick = 0L;
+            tickDelta = 0L;
+            Arrays.fill(values, 0L);
+            Arrays.fill(deltas, 0L);
+        }
+
+        void ensureCapacity(int valueCount) {
+            if(values.length < valueCount) {
+                values = Arrays.copyOf(values, Math.max(valueCount, values.length * 2));
+                deltas = Arrays.copyOf(deltas, values.length);
+            }
+        }
+
+        void copyFrom(DeltaState other) {
+            tick = other.tick;
+            tickDelta = other.tickDelta;
+            values = other.values.clone();
+            deltas = other.deltas.clone();
+        }
+
+        void encode(ByteBuffer out, long newTick, long[] newValues, int valueCount) {
+            ensureCapacity(valueCount);
+            VarInts.putVarInt(out, valueCount);
+            final long newTickDelta = newTick - tick;
+            VarInts.putSignedVarLong(out, newTickDelta - tickDelta);
+            tick = newTick;
+            tickDelta = newTickDelta;
+            int i = 0;
+            while (i < valueCount) {
+                int run = 0;
+                while (i < valueCount && newValues[i] - values[i] == deltas[i]) {
+                    values[i] = newValues[i];
+                    run++;
+                    i++;
+                }
+                VarInts.putVarInt(out, run);
+                if(i < valueCount) {
+                    final long delta = newValues[i] - values[i];
+                    VarInts.putSignedVarLong(out, delta - deltas[i]);
+                    values[i] = newValues[i];
+                    deltas[i] = delta;
+                    i++;
+                }
+            }
+        }
+
+        void decode(ByteBuffer in) {
+            final int valueCount = VarInts.getVarInt(in);
+            ensureCapacity(valueCount);
+            tickDelta += VarInts.getSignedVarLong(in);
+            tick += tickDelta;
+            int i = 0;
+            while (i < valueCount) {
+                final int run = VarInts.getVarInt(in);
+                for (final int end = i + run; i < end; i++) {
+                    values[i] += deltas[i];
+                }
+                if(i < valueCount) {
+                    deltas[i] += VarInts.getSignedVarLong(in);
+                    values[i] += deltas[i];
+                    i++;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Sequential reader over all records from a keyframe on.
+     */
+    private class Cursor {
+
+        private final DeltaState state = new DeltaState();
+        private Integer segment;
+        private ByteBuffer buffer;
+        private int recordSegment;
+        private int recordOffset;
+        private boolean keyframe;
+        private long tick;
+
+        Cursor(int segment, int offset) {
+            this.segment = segment;
+            final MappedByteBuffer mapped = segments.get(segment);
+            this.buffer = mapped.duplicate().position(offset).limit(writePosition(segment));
+        }
+
+        boolean next() {
+            while (!buffer.hasRemaining()) {
+                segment = segments.higherKey(segment);
+                if(segment == null) {
+                    return false;
+                }
+                final MappedByteBuffer mapped = segments.get(segment);
+                buffer = mapped.duplicate().position(HEADER_SIZE).limit(writePosition(segment));
+            }
+            recordSegment = segment;
+            recordOffset = buffer.position();
+            keyframe = buffer.get() == FLAG_KEYFRAME;
+            if(keyframe) {
+                state.reset();
+            }
+            state.decode(buffer);
+            tick = state.tick;
+            return true;
+        }
+
+        FactorioMetric toMetric(FactorioMetric.Builder builder) {
+            final int columns = Math.min(columnNames.size(), state.values.length / 2);
+            for (int column = 0; column < columns; column++) {
+                final long consumed = state.values[2 * column];
+                final long produced = state.values[2 * column + 1];
+                // Zero counters are not part of the statistics, just like in the other representations
+                if(consumed != 0L || produced != 0L) {
+                    builder.set(itemIdByColumn[column], consumed, produced);
+                }
+            }
+            return builder.build(tick);
+        }
+
+    }
+
+}
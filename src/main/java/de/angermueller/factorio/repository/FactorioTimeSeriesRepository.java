@@ -13,7 +13,51 @@ public interface FactorioTimeSeriesRepository {
 
     void store(FactorioMetric metric);
 
-    List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, long maxResults);
+    default List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, long maxResults) {
+        return retrieve(resolution, afterGameTick, null, maxResults);
+    }
+
+    /**
+     * Returns up to maxResults values after afterGameTick and up to including untilGameTick, the latest ones first.
+     * Both bounds are optional.
+     */
+    List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, Long untilGameTick, long maxResults);
+
+    /**
+     * Returns the tick up to which the values of the resolution are final or null if that is unknown.
+     */
+    default Long getLastClosedTick(Resolution resolution) {
+        return null;
+    }
+
+    /**
+     * Aggregator computing the stored values of the given resolution from the samples of a bucket.
+     */
+    default Aggregator getAggregator(Resolution resolution) {
+        return Aggregators.MAX;
+    }
+
+    /**
+     * Returns whether values of the resolution are dropped once they get old.
+     */
+    default boolean hasRetention(Resolution resolution) {
+        return false;
+    }
+
+    /**
+     * Returns the tick before which values of the resolution may have been dropped or null if none were.
+     */
+    default Long getRetentionHorizon(Resolution resolution) {
+        return null;
+    }
+
+    /**
+     * Identifies the stored data. Changes whenever values of closed buckets may have changed other than by
+     * retention, e.g. because the database was replaced.
+     */
+    default String getGeneration() {
+        return "";
+    }
 
     interface Resolution extends Comparable<Resolution> {
 
@@ -1,34 +1,79 @@
 package de.angermueller.factorio.repository;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import de.angermueller.factorio.domain.FactorioMetric;
 import jakarta.annotation.PreDestroy;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.ApplicationEventPublisher;
 
+import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.*;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Stores every resolution in tick range partitions, tables named {@code <series>_<resolution>_p<first tick>}. A
+ * partition ends where the next one starts, so expired data is removed by dropping whole tables. The unpartitioned
+ * table of earlier versions is kept as the oldest partition.
+ * <p>
+ * Writes go through the given connection. Reads use connections of the read data source if there is one, MVCC lets
+ * them run alongside the writes, and share the write connection otherwise.
+ */
+@Slf4j
 public abstract class H2FactorioTimeSeriesRepositoryImpl extends SQLFactorioTimeSeriesRepositoryImpl implements AutoCloseable {
 
-    private static final ObjectMapper MAPPER = new ObjectMapper();
-    private static final TypeReference<Map<String, Long>> MAP_TYPE_REFERENCE = new TypeReference<>() {};
+    private static final long LEGACY_PARTITION = Long.MIN_VALUE;
+
     private final Connection connection;
-    private final Map<Resolution, PreparedStatements> statementsMap = new HashMap<>();
+    private final DataSource readDataSource;
+    private final Map<Resolution, NavigableMap<Long, Partition>> partitionsMap = new HashMap<>();
+    // The writer thread, the retention and readers without a read data source share the connection
+    private final Lock connectionLock = new ReentrantLock();
+    /** Buckets per partition, only affects partitions created from now on */
+    @Setter
+    private long partitionBuckets = 4096L;
 
     public H2FactorioTimeSeriesRepositoryImpl(Connection connection, String seriesName, ApplicationEventPublisher applicationEventPublisher) throws SQLException {
+        this(connection, null, seriesName, applicationEventPublisher);
+    }
+
+    /**
+     * @param readDataSource Connections to the same database for reads, may be null
+     */
+    public H2FactorioTimeSeriesRepositoryImpl(Connection connection, DataSource readDataSource, String seriesName, ApplicationEventPublisher applicationEventPublisher) throws SQLException {
         super(seriesName, applicationEventPublisher);
         assert connection != null;
         this.connection = connection;
+        this.readDataSource = readDataSource;
+    }
+
+    private String tableName(Resolution resolution) {
+        return seriesName + "_" + resolution.identifier();
     }
 
     @Override
     protected void ensureTable(Resolution resolution) throws SQLException {
-        final String tableName = seriesName + "_" + resolution.identifier();
+        final String tableName = tableName(resolution);
+        // Readers walk the partitions while the writer adds and the retention removes them
+        final NavigableMap<Long, Partition> partitions = new ConcurrentSkipListMap<>();
+        try(ResultSet rs = connection.getMetaData().getTables(null, connection.getSchema(), null, new String[]{"TABLE"})) {
+            while (rs.next()) {
+                // Quoted names end up in upper case
+                final String name = rs.getString("TABLE_NAME");
+                if(name.equalsIgnoreCase(tableName)) {
+                    partitions.put(LEGACY_PARTITION, openPartition(name));
+                } else if(name.regionMatches(true, 0, tableName + "_p", 0, tableName.length() + 2) && name.substring(tableName.length() + 2).matches("-?\\d+")) {
+                    partitions.put(Long.parseLong(name.substring(tableName.length() + 2)), openPartition(name));
+                }
+            }
+        }
+        partitionsMap.put(resolution, partitions);
+    }
+
+    private Partition openPartition(String tableName) throws SQLException {
         try(Statement stm = connection.createStatement()) {
             stm.execute(("CREATE TABLE IF NOT EXISTS `{tableName}` (" +
                     "GAME_TICK BIGINT PRIMARY KEY," +
@@ -37,27 +82,120 @@ public abstract class H2FactorioTimeSeriesRepositoryImpl extends SQLFactorioTime
         }
         PreparedStatement psInsert = connection.prepareStatement("INSERT INTO `{tableName}` (GAME_TICK, DATA) VALUES (?, ? FORMAT JSON);".replace("{tableName}", tableName));
         PreparedStatement psSelectLastTick = connection.prepareStatement("SELECT GAME_TICK FROM `{tableName}` ORDER BY GAME_TICK DESC LIMIT 1;".replace("{tableName}", tableName));
-        PreparedStatement psSelect = connection.prepareStatement("SELECT GAME_TICK, DATA FROM `{tableName}` WHERE GAME_TICK > ? ORDER BY GAME_TICK DESC LIMIT ?;".replace("{tableName}", tableName));
-        statementsMap.put(resolution, new PreparedStatements(psInsert, psSelectLastTick, psSelect));
+        final String select = "SELECT GAME_TICK, DATA FROM `{tableName}` WHERE GAME_TICK > ? AND GAME_TICK <= ? ORDER BY GAME_TICK DESC LIMIT ?;".replace("{tableName}", tableName);
+        return new Partition(tableName, select, psInsert, psSelectLastTick);
+    }
+
+    /**
+     * Returns the partition the value of the given tick goes to, values only ever go to the latest one.
+     */
+    private Partition partitionFor(Resolution resolution, long gameTick) throws SQLException {
+        final NavigableMap<Long, Partition> partitions = partitionsMap.get(resolution);
+        final Map.Entry<Long, Partition> latest = partitions.lastEntry();
+        final long width = resolution.ticksPerUnit() * partitionBuckets;
+        if(latest != null && latest.getKey() != LEGACY_PARTITION && gameTick - latest.getKey() < width) {
+            return latest.getValue();
+        }
+        long start = gameTick - Math.floorMod(gameTick, width);
+        if(latest != null && (latest.getKey() == LEGACY_PARTITION || start <= latest.getKey())) {
+            // Must not overlap the previous partition, whose values all come before this one
+            start = gameTick;
+        }
+        final Partition partition = openPartition(tableName(resolution) + "_p" + start);
+        partitions.put(start, partition);
+        log.debug("Created partition {}", partition.tableName);
+        return partition;
     }
 
     @Override
     protected void doStoreValue(Resolution resolution, FactorioMetric metric) throws SQLException, IOException {
-        PreparedStatement ps = statementsMap.get(resolution).psInsert;
-        ps.setLong(1, metric.getGameTick());
-        ps.setString(2, MAPPER.writeValueAsString(metric.getData()));
-        ps.execute();
+        connectionLock.lock();
+        try {
+            PreparedStatement ps = partitionFor(resolution, metric.getGameTick()).psInsert;
+            ps.setLong(1, metric.getGameTick());
+            ps.setString(2, MetricJsonCodec.write(metric));
+            ps.execute();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    @Override
+    protected void doStoreValues(List<PendingValue> values) throws SQLException, IOException {
+        connectionLock.lock();
+        final Set<PreparedStatement> batches = new LinkedHashSet<>();
+        try {
+            for (PendingValue value : values) {
+                PreparedStatement ps = partitionFor(value.resolution(), value.metric().getGameTick()).psInsert;
+                ps.setLong(1, value.metric().getGameTick());
+                ps.setString(2, MetricJsonCodec.write(value.metric()));
+                ps.addBatch();
+                batches.add(ps);
+            }
+            connection.setAutoCommit(false);
+            try {
+                for (PreparedStatement ps : batches) {
+                    ps.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            for (PreparedStatement ps : batches) {
+                ps.clearBatch();
+            }
+            connectionLock.unlock();
+        }
     }
 
     @Override
-    protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long maxResults) throws SQLException, IOException {
-        PreparedStatement ps = statementsMap.get(resolution).psSelect;
-        ps.setLong(1, afterTick);
-        ps.setLong(2, maxResults);
+    protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResults) throws SQLException, IOException {
+        if(readDataSource != null) {
+            try(Connection readConnection = readDataSource.getConnection()) {
+                return doRetrieveValues(readConnection, resolution, afterTick, untilTick, maxResults);
+            }
+        }
+        connectionLock.lock();
+        try {
+            return doRetrieveValues(connection, resolution, afterTick, untilTick, maxResults);
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private List<FactorioMetric> doRetrieveValues(Connection readConnection, Resolution resolution, long afterTick, long untilTick, long maxResults) throws SQLException, IOException {
         LinkedList<FactorioMetric> result = new LinkedList<>();
-        try(ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                result.add(new FactorioMetric(rs.getLong("GAME_TICK"), MAPPER.readValue(rs.getString("DATA"), MAP_TYPE_REFERENCE)));
+        final FactorioMetric.Builder builder = new FactorioMetric.Builder();
+        final NavigableMap<Long, Partition> partitions = partitionsMap.get(resolution);
+        Long end = null;
+        for (Map.Entry<Long, Partition> entry : partitions.descendingMap().entrySet()) {
+            // All ticks of this and the older partitions are before the next partition's start
+            if(result.size() >= maxResults || (end != null && end - 1 <= afterTick)) {
+                break;
+            }
+            end = entry.getKey();
+            if(entry.getKey() > untilTick) {
+                continue;
+            }
+            try(PreparedStatement ps = readConnection.prepareStatement(entry.getValue().select)) {
+                ps.setLong(1, afterTick);
+                ps.setLong(2, untilTick);
+                ps.setLong(3, maxResults - result.size());
+                try(ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(MetricJsonCodec.read(rs.getLong("GAME_TICK"), rs.getString("DATA"), builder));
+                    }
+                }
+            } catch (SQLException e) {
+                if(partitions.get(entry.getKey()) == entry.getValue()) {
+                    throw e;
+                }
+                // Dropped by the retention in the meantime
+                log.debug("Partition {} disappeared while reading", entry.getValue().tableName);
             }
         }
         return result;
@@ -65,26 +203,64 @@ public abstract class H2FactorioTimeSeriesRepositoryImpl extends SQLFactorioTime
 
     @Override
     protected Long retrieveLastTick(Resolution resolution) throws SQLException {
-        PreparedStatement ps = statementsMap.get(resolution).psSelectLastTick;
-        try(ResultSet rs = ps.executeQuery()) {
-            if(rs.next()) {
-                return rs.getLong("GAME_TICK");
+        connectionLock.lock();
+        try {
+            for (Partition partition : partitionsMap.get(resolution).descendingMap().values()) {
+                try(ResultSet rs = partition.psSelectLastTick.executeQuery()) {
+                    if(rs.next()) {
+                        return rs.getLong("GAME_TICK");
+                    }
+                }
             }
+            return null;
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    @Override
+    protected void dropValuesBefore(Resolution resolution, long gameTick) throws SQLException {
+        connectionLock.lock();
+        try {
+            final NavigableMap<Long, Partition> partitions = partitionsMap.get(resolution);
+            // A partition only ends where the next one starts, the latest one is never dropped
+            Map.Entry<Long, Partition> oldest = partitions.firstEntry();
+            while (oldest != null && partitions.higherKey(oldest.getKey()) != null && partitions.higherKey(oldest.getKey()) <= gameTick) {
+                final Partition partition = oldest.getValue();
+                // Removed first, so readers know the table is gone on purpose
+                partitions.remove(oldest.getKey());
+                partition.close();
+                try(Statement stm = connection.createStatement()) {
+                    stm.execute("DROP TABLE IF EXISTS `{tableName}`;".replace("{tableName}", partition.tableName));
+                }
+                log.info("Dropped expired partition {}", partition.tableName);
+                oldest = partitions.firstEntry();
+            }
+        } finally {
+            connectionLock.unlock();
         }
-        return null;
     }
 
     @Override
     @PreDestroy
     public void close() throws SQLException {
-        for (PreparedStatements value : statementsMap.values()) {
-            value.psInsert.close();
-            value.psSelectLastTick.close();
-            value.psSelect.close();
+        stopWriter();
+        for (NavigableMap<Long, Partition> partitions : partitionsMap.values()) {
+            for (Partition partition : partitions.values()) {
+                partition.close();
+            }
         }
     }
 
-    protected record PreparedStatements(PreparedStatement psInsert, PreparedStatement psSelectLastTick, PreparedStatement psSelect) {
+    /**
+     * @param select Range query, prepared by the reading connection
+     */
+    protected record Partition(String tableName, String select, PreparedStatement psInsert, PreparedStatement psSelectLastTick) {
+
+        void close() throws SQLException {
+            psInsert.close();
+            psSelectLastTick.close();
+        }
 
     }
 
@@ -0,0 +1,103 @@
+package de.angermueller.factorio.repository;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts metrics from and to the persisted JSON representation {@code {"in_<item>": consumed, "out_<item>":
+ * produced}} without intermediate maps. The prefixed keys are cached per item, so neither direction concatenates or
+ * cuts strings per value.
+ */
+public final class MetricJsonCodec {
+
+    private static final String CONSUMED_PREFIX = "in_";
+    private static final String PRODUCED_PREFIX = "out_";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    /** Item id times two, plus one for produced counters */
+    private static final Map<String, Integer> KEY_CODES = new ConcurrentHashMap<>();
+    private static volatile String[] keys = new String[0];
+
+    private MetricJsonCodec() {
+    }
+
+    public static String write(FactorioMetric metric) throws IOException {
+        final StringWriter writer = new StringWriter(metric.size() * 48);
+        try(JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            for (int i = 0; i < metric.size(); i++) {
+                final int itemId = metric.getItemId(i);
+                // Zero counters are not part of the respective statistics table
+                if(metric.getConsumed(i) != 0L) {
+                    generator.writeNumberField(key(itemId, false), metric.getConsumed(i));
+                }
+                if(metric.getProduced(i) != 0L) {
+                    generator.writeNumberField(key(itemId, true), metric.getProduced(i));
+                }
+            }
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    public static FactorioMetric read(long gameTick, String json, FactorioMetric.Builder builder) throws IOException {
+        try(JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expecting a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final int code = keyCode(parser.getCurrentName());
+                parser.nextToken();
+                if((code & 1) == 0) {
+                    builder.setConsumed(code >>> 1, parser.getLongValue());
+                } else {
+                    builder.setProduced(code >>> 1, parser.getLongValue());
+                }
+            }
+        }
+        return builder.build(gameTick);
+    }
+
+    private static int keyCode(String key) {
+        final Integer code = KEY_CODES.get(key);
+        if(code != null) {
+            return code;
+        }
+        final int newCode;
+        if(key.startsWith(CONSUMED_PREFIX)) {
+            newCode = ItemRegistry.idOf(key.substring(CONSUMED_PREFIX.length())) << 1;
+        } else if(key.startsWith(PRODUCED_PREFIX)) {
+            newCode = (ItemRegistry.idOf(key.substring(PRODUCED_PREFIX.length())) << 1) | 1;
+        } else {
+            throw new IllegalArgumentException("Unexpected key " + key);
+        }
+        KEY_CODES.put(key, newCode);
+        return newCode;
+    }
+
+    private static String key(int itemId, boolean produced) {
+        final int code = (itemId << 1) | (produced ? 1 : 0);
+        String[] keys = MetricJsonCodec.keys;
+        if(code >= keys.length || keys[code] == null) {
+            synchronized (MetricJsonCodec.class) {
+                keys = MetricJsonCodec.keys;
+                if(code >= keys.length) {
+                    keys = Arrays.copyOf(keys, Math.max(code + 1, ItemRegistry.size() * 2));
+                }
+                keys[code] = (produced ? PRODUCED_PREFIX : CONSUMED_PREFIX) + ItemRegistry.nameOf(itemId);
+                MetricJsonCodec.keys = keys;
+            }
+        }
+        return keys[code];
+    }
+
+}
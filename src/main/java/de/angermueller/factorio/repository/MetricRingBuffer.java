@@ -0,0 +1,95 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The latest values of a resolution, in ascending tick order. All stored values from {@link #completeFrom} on are in
+ * the buffer, so reads that don't reach further back can skip the storage.
+ */
+class MetricRingBuffer {
+
+    private final long[] ticks;
+    private final FactorioMetric[] metrics;
+    private int start = 0;
+    private int size = 0;
+    private long completeFrom = Long.MIN_VALUE;
+
+    MetricRingBuffer(int capacity) {
+        assert capacity > 0;
+        this.ticks = new long[capacity];
+        this.metrics = new FactorioMetric[capacity];
+    }
+
+    /**
+     * Fills the buffer from the storage, the given values are the latest ones, latest first.
+     */
+    synchronized void load(List<FactorioMetric> latest) {
+        start = 0;
+        size = 0;
+        completeFrom = Long.MIN_VALUE;
+        for (int i = Math.min(latest.size(), ticks.length) - 1; i >= 0; i--) {
+            add(latest.get(i));
+        }
+        if(latest.size() >= ticks.length) {
+            // There may be older values
+            completeFrom = ticks[start];
+        }
+    }
+
+    synchronized void add(FactorioMetric metric) {
+        assert size == 0 || metric.getGameTick() > ticks[(start + size - 1) % ticks.length];
+        if(size == ticks.length) {
+            completeFrom = ticks[start] + 1;
+            metrics[start] = null;
+            start = (start + 1) % ticks.length;
+            size--;
+        }
+        final int slot = (start + size) % ticks.length;
+        ticks[slot] = metric.getGameTick();
+        metrics[slot] = metric;
+        size++;
+    }
+
+    /**
+     * Returns up to maxResults values in (afterTick, untilTick], the latest ones first, or null if values the
+     * buffer no longer has could belong to the result.
+     */
+    synchronized List<FactorioMetric> retrieve(long afterTick, long untilTick, long maxResults) {
+        final List<FactorioMetric> result = new ArrayList<>((int) Math.min(maxResults, size));
+        int i = lastAtOrBefore(untilTick);
+        for (; i >= 0 && result.size() < maxResults; i--) {
+            final int slot = (start + i) % ticks.length;
+            if(ticks[slot] <= afterTick) {
+                break;
+            }
+            result.add(metrics[slot]);
+        }
+        if(result.size() < maxResults && completeFrom != Long.MIN_VALUE && afterTick < completeFrom - 1) {
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Position (relative to start) of the latest value at or before the given tick, -1 if there is none.
+     */
+    private int lastAtOrBefore(long tick) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if(ticks[(start + mid) % ticks.length] <= tick) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+}
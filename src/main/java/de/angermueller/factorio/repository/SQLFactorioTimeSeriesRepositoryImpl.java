@@ -3,23 +3,89 @@ package de.angermueller.factorio.repository;
 import de.angermueller.factorio.domain.FactorioMetric;
 import de.angermueller.factorio.event.MetricEvent;
 import jakarta.annotation.PostConstruct;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.ApplicationEventPublisher;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
+@Slf4j
 public abstract class SQLFactorioTimeSeriesRepositoryImpl implements FactorioTimeSeriesRepository {
 
+    private static final PendingValue STOP_WRITER = new PendingValue(null, null);
+
     private final Map<Resolution, SeriesData> seriesDataMap = new HashMap<>();
+    /** Root of the rollup chain, coarser resolutions only see the closed buckets of the next finer one */
+    private SeriesData finest;
     private final Lock lock = new ReentrantLock();
     private boolean initialised = false;
     protected final String seriesName;
     private final ApplicationEventPublisher applicationEventPublisher;
+    // Write-behind: closed buckets are queued and written in batches by a dedicated thread
+    @Setter
+    private boolean writeBehind = true;
+    @Setter
+    private int writeQueueCapacity = 10000;
+    @Setter
+    private int flushSize = 256;
+    @Setter
+    private long flushLatencyMillis = 1000L;
+    // A batch failing for a transient reason is retried with exponential backoff, the values stay readable meanwhile
+    @Setter
+    private long writeRetryInitialMillis = 1000L;
+    @Setter
+    private long writeRetryMaxMillis = 60000L;
+    @Setter
+    private int writeAttempts = 10;
+    /** Set while a batch is retried, values that don't fit into the queue are dropped then instead of blocking */
+    private volatile boolean writeFailing = false;
+    private volatile boolean stopping = false;
+    private final AtomicLong droppedValues = new AtomicLong();
+    private final AtomicLong quarantinedValues = new AtomicLong();
+    private BlockingQueue<PendingValue> writeQueue;
+    /** Queued or in-flight values, so reads see them before they are committed */
+    private final Deque<PendingValue> unflushed = new ConcurrentLinkedDeque<>();
+    private Thread writer;
+    // Aggregation of the closed buckets, by resolution
+    @Setter
+    private Aggregator defaultAggregator = Aggregators.MAX;
+    private final Map<Resolution, Aggregator> aggregators = new HashMap<>();
+    // Snapshot of the open buckets, disabled without a file
+    @Setter
+    private Path checkpointFile;
+    @Setter
+    private long checkpointIntervalMillis = 60000L;
+    private long nextCheckpoint;
+    // Retention in ticks by resolution, resolutions without one are kept forever
+    private final Map<Resolution, Long> retentionTicks = new HashMap<>();
+    /** Horizon of the last retention run by resolution */
+    private final Map<Resolution, Long> retentionHorizons = new ConcurrentHashMap<>();
+    /** Nothing is known about the data a previous process served, so every process starts a new generation */
+    private final String generation = UUID.randomUUID().toString();
+    @Setter
+    private long retentionIntervalMillis = 10L * 60L * 1000L;
+    private ScheduledExecutorService retentionExecutor;
+    /** Latest values kept in memory per resolution, 0 disables the hot tier */
+    @Setter
+    private int hotTierCapacity = 0;
+    private final Map<Resolution, MetricRingBuffer> hotTiers = new HashMap<>();
 
     public SQLFactorioTimeSeriesRepositoryImpl(String seriesName, ApplicationEventPublisher applicationEventPublisher) {
         assert seriesName != null && !seriesName.isEmpty();
@@ -34,64 +100,425 @@ public abstract class SQLFactorioTimeSeriesRepositoryImpl implements FactorioTim
         if(resolutions.isEmpty()) {
             throw new Error("Must support at least one resolution");
         }
+        final Map<String, AccumulatorCheckpoint.Entry> checkpoint = readCheckpoint();
         long lastTick = 0;
-        Resolution first = resolutions.get(0);
+        SeriesData finer = null;
         for (Resolution resolution : resolutions) {
             ensureTable(resolution);
-            lastTick = Optional.ofNullable(retrieveLastTick(resolution)).orElse(lastTick);
-            List<FactorioMetric> inputBuffer = new LinkedList<>(retrieveValues(first, lastTick, Integer.MAX_VALUE));
-            Collections.sort(inputBuffer);
-            seriesDataMap.put(resolution, new SeriesData(resolution, inputBuffer, lastTick));
+            final long ticksPerUnit = resolution.ticksPerUnit();
+            if(finer != null && ticksPerUnit % finer.resolution.ticksPerUnit() != 0) {
+                log.warn("{} is no multiple of {}, its buckets won't line up with the ones it is rolled up from", resolution, finer.resolution);
+            }
+            final Long storedLastTick = retrieveLastTick(resolution);
+            final AccumulatorCheckpoint.Entry entry = checkpoint.get(resolution.identifier());
+            final SeriesData seriesData;
+            // Finer buckets after this tick are not part of the open bucket yet
+            long mergedUntil;
+            if(entry != null && (storedLastTick == null || storedLastTick <= entry.lastStoredTick())) {
+                // Nothing closed since the checkpoint, the open bucket continues where it left off
+                lastTick = entry.lastStoredTick();
+                seriesData = new SeriesData(resolution, getAggregator(resolution), lastTick, entry.accumulator());
+                final AccumulatorCheckpoint.Entry finerEntry = finer == null ? null : checkpoint.get(finer.resolution.identifier());
+                mergedUntil = Math.max(lastTick, finerEntry == null ? lastTick : finerEntry.lastStoredTick());
+            } else {
+                // Without own values continue after the finer resolution, on a bucket boundary of this one
+                lastTick = Optional.ofNullable(storedLastTick).orElse(lastTick / ticksPerUnit * ticksPerUnit);
+                seriesData = new SeriesData(resolution, getAggregator(resolution), lastTick, new BucketAccumulator());
+                mergedUntil = lastTick;
+            }
+            if(finer == null) {
+                finest = seriesData;
+            } else {
+                finer.coarser = seriesData;
+                // Only after a crash or without a checkpoint, a clean shutdown checkpoints everything that was closed
+                if(finer.lastStoredTick > mergedUntil) {
+                    if(canReplay(finer, seriesData)) {
+                        replay(finer, seriesData, mergedUntil);
+                    } else {
+                        log.warn("Unable to rebuild the open {} bucket of {} from {} buckets aggregated by {}, it misses the ones after tick {}",
+                                resolution, seriesName, finer.resolution, finer.aggregator, mergedUntil);
+                    }
+                }
+            }
+            seriesDataMap.put(resolution, seriesData);
+            finer = seriesData;
+            if(hotTierCapacity > 0) {
+                final MetricRingBuffer hotTier = new MetricRingBuffer(hotTierCapacity);
+                hotTier.load(retrieveValues(resolution, 0L, Long.MAX_VALUE, hotTierCapacity));
+                hotTiers.put(resolution, hotTier);
+            }
+        }
+        if(writeBehind) {
+            assert flushSize > 0 && flushLatencyMillis >= 0 && writeQueueCapacity > 0;
+            writeQueue = new ArrayBlockingQueue<>(writeQueueCapacity);
+            writer = new Thread(this::runWriter, seriesName + "-writer");
+            writer.start();
+        }
+        if(!retentionTicks.isEmpty()) {
+            retentionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, seriesName + "-retention");
+                thread.setDaemon(true);
+                return thread;
+            });
+            retentionExecutor.scheduleWithFixedDelay(this::applyRetention, 0L, retentionIntervalMillis, TimeUnit.MILLISECONDS);
         }
+        nextCheckpoint = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMillis);
         initialised = true;
     }
 
+    /**
+     * Whether the stored buckets of the finer resolution can be added to the coarser one as if they were samples.
+     */
+    private static boolean canReplay(SeriesData finer, SeriesData coarser) {
+        return finer.aggregator.equals(coarser.aggregator) && finer.aggregator.isIdempotent();
+    }
+
+    /**
+     * Adds the closed buckets of the finer resolution after the given tick to the open bucket of the coarser one.
+     */
+    private void replay(SeriesData finer, SeriesData coarser, long mergedUntil) throws SQLException, IOException {
+        final List<FactorioMetric> tail = new ArrayList<>(retrieveValues(finer.resolution, mergedUntil, Long.MAX_VALUE, Integer.MAX_VALUE));
+        Collections.sort(tail);
+        for (FactorioMetric metric : tail) {
+            coarser.accumulator.add(metric);
+        }
+    }
+
+    private Map<String, AccumulatorCheckpoint.Entry> readCheckpoint() {
+        if(checkpointFile == null) {
+            return Map.of();
+        }
+        try {
+            return AccumulatorCheckpoint.read(checkpointFile, seriesName);
+        } catch (IOException e) {
+            log.warn("Unable to read checkpoint of {}, rebuilding open buckets from stored values", seriesName, e);
+            return Map.of();
+        }
+    }
+
+    /**
+     * Writes the checkpoint of the open buckets, must be called with the lock held.
+     */
+    private void writeCheckpoint() {
+        final List<AccumulatorCheckpoint.Entry> entries = new ArrayList<>(seriesDataMap.size());
+        for (SeriesData seriesData : seriesDataMap.values()) {
+            entries.add(new AccumulatorCheckpoint.Entry(seriesData.resolution.identifier(), seriesData.lastStoredTick, seriesData.accumulator));
+        }
+        try {
+            AccumulatorCheckpoint.write(checkpointFile, seriesName, entries);
+            log.trace("Wrote checkpoint of {}", seriesName);
+        } catch (IOException e) {
+            log.warn("Unable to write checkpoint of {}", seriesName, e);
+        }
+        nextCheckpoint = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMillis);
+    }
+
+    public void setRetention(Resolution resolution, long ticks) {
+        assert resolution != null && ticks > 0;
+        retentionTicks.put(resolution, ticks);
+    }
+
+    /**
+     * Drops the expired values of all resolutions with a retention. A resolution keeps at least one bucket of the
+     * coarser resolution, which is rebuilt from them on startup.
+     */
+    private void applyRetention() {
+        final Map<Resolution, Long> horizons = new HashMap<>();
+        lock.lock();
+        try {
+            for (SeriesData seriesData : seriesDataMap.values()) {
+                final Long retention = retentionTicks.get(seriesData.resolution);
+                if(retention != null) {
+                    final long kept = seriesData.coarser == null ? retention : Math.max(retention, seriesData.coarser.resolution.ticksPerUnit());
+                    horizons.put(seriesData.resolution, seriesData.lastStoredTick - kept);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Resolution, Long> horizon : horizons.entrySet()) {
+            try {
+                // Before dropping, so readers never combine the old horizon with already dropped values
+                retentionHorizons.merge(horizon.getKey(), horizon.getValue(), Math::max);
+                dropValuesBefore(horizon.getKey(), horizon.getValue());
+            } catch (SQLException | IOException | RuntimeException e) {
+                log.error("Unable to drop expired values of {} {}", seriesName, horizon.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the open buckets, stops accepting values and waits until everything queued is written.
+     * Implementations call this before they release their resources.
+     */
+    protected void stopWriter() {
+        if(retentionExecutor != null) {
+            retentionExecutor.shutdownNow();
+            retentionExecutor = null;
+        }
+        if(initialised && checkpointFile != null) {
+            lock.lock();
+            try {
+                writeCheckpoint();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if(writer == null) {
+            return;
+        }
+        stopping = true;
+        try {
+            writeQueue.put(STOP_WRITER);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while draining write queue of {}, {} values not written", seriesName, unflushed.size());
+        }
+        writer = null;
+    }
+
+    private void runWriter() {
+        final List<PendingValue> batch = new ArrayList<>(flushSize);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                final PendingValue first = writeQueue.take();
+                if(first == STOP_WRITER) {
+                    break;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushLatencyMillis);
+                while (batch.size() < flushSize) {
+                    final PendingValue next = writeQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    if(next == STOP_WRITER) {
+                        stopped = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                log.warn("Writer of {} interrupted", seriesName);
+                stopped = true;
+            }
+            if(!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the batch. The values stay in {@link #unflushed} until then, so readers keep seeing what is going to be
+     * stored. If the batch can't be written for good, the values are written one by one and only the ones that fail
+     * are quarantined, so the writer moves on.
+     */
+    private void flush(List<PendingValue> batch) {
+        final WriteResult result = write(batch);
+        if(result == WriteResult.REJECTED && batch.size() > 1) {
+            for (PendingValue value : batch) {
+                if(write(List.of(value)) != WriteResult.WRITTEN) {
+                    quarantine(value);
+                }
+            }
+        } else if(result != WriteResult.WRITTEN) {
+            batch.forEach(this::quarantine);
+        }
+        writeFailing = false;
+        for (int i = 0; i < batch.size(); i++) {
+            unflushed.pollFirst();
+        }
+    }
+
+    /**
+     * Writes the values, retrying transient errors up to {@link #writeAttempts} times. Gives up early on shutdown.
+     */
+    private WriteResult write(List<PendingValue> values) {
+        int failures = 0;
+        while (true) {
+            try {
+                doStoreValues(values);
+                log.trace("Wrote {} values of {}", values.size(), seriesName);
+                if(failures > 0) {
+                    log.info("Wrote {} values of {} after {} failed attempts", values.size(), seriesName, failures);
+                }
+                return WriteResult.WRITTEN;
+            } catch (SQLException | IOException | RuntimeException e) {
+                failures++;
+                if(!isTransient(e)) {
+                    log.error("Unable to write {} values of {}", values.size(), seriesName, e);
+                    return WriteResult.REJECTED;
+                }
+                if(stopping || failures >= writeAttempts) {
+                    log.error("Unable to write {} values of {} after {} attempts", values.size(), seriesName, failures, e);
+                    return WriteResult.FAILED;
+                }
+                writeFailing = true;
+                final long delay = Math.min(writeRetryInitialMillis << Math.min(failures - 1, 20), writeRetryMaxMillis);
+                log.error("Unable to write {} values of {}, retrying in {} ms", values.size(), seriesName, delay, e);
+                try {
+                    // Shutdown shouldn't wait for the backoff, it makes the next attempt the last one
+                    final long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                    while (!stopping && System.nanoTime() - retryAt < 0) {
+                        Thread.sleep(Math.min(100L, Math.max(1L, TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()))));
+                    }
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    log.error("Interrupted while retrying to write {} values of {}", values.size(), seriesName);
+                    return WriteResult.FAILED;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether writing may succeed when tried again, like after a lost connection or a lock timeout. Anything else,
+     * like a constraint violation, fails again the same way.
+     */
+    private static boolean isTransient(Exception e) {
+        if(e instanceof IOException || e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || e instanceof SQLNonTransientConnectionException) {
+            return true;
+        }
+        // Connection exceptions of drivers without the specific subclasses
+        return e instanceof SQLException sqlException && sqlException.getSQLState() != null && sqlException.getSQLState().startsWith("08");
+    }
+
+    /**
+     * Gives up on a value, it is logged so it can be restored by hand.
+     */
+    private void quarantine(PendingValue value) {
+        quarantinedValues.incrementAndGet();
+        String json;
+        try {
+            json = MetricJsonCodec.write(value.metric());
+        } catch (IOException | RuntimeException e) {
+            json = value.metric().toString();
+        }
+        log.error("Quarantined {} value of {} at tick {}: {}", value.resolution(), seriesName, value.metric().getGameTick(), json);
+    }
+
+    /**
+     * Number of closed buckets that were not stored because the write queue was full while writes were failing.
+     */
+    public long getDroppedValues() {
+        return droppedValues.get();
+    }
+
+    /**
+     * Number of closed buckets that were not stored because writing them failed for good.
+     */
+    public long getQuarantinedValues() {
+        return quarantinedValues.get();
+    }
+
+    public void setAggregator(Resolution resolution, Aggregator aggregator) {
+        assert resolution != null && aggregator != null;
+        aggregators.put(resolution, aggregator);
+    }
+
+    @Override
+    public Aggregator getAggregator(Resolution resolution) {
+        return aggregators.getOrDefault(resolution, defaultAggregator);
+    }
+
     @Override
     public String getSeriesName() {
         return seriesName;
     }
 
-    protected abstract void ensureTable(Resolution resolution) throws SQLException;
+    protected abstract void ensureTable(Resolution resolution) throws SQLException, IOException;
 
     protected abstract void doStoreValue(Resolution resolution, FactorioMetric metric) throws SQLException, IOException;
 
-    protected abstract List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long maxResult) throws SQLException, IOException;
+    /**
+     * Writes a batch of values, ideally in a single transaction. Values of different resolutions can be mixed.
+     */
+    protected void doStoreValues(List<PendingValue> values) throws SQLException, IOException {
+        for (PendingValue value : values) {
+            doStoreValue(value.resolution(), value.metric());
+        }
+    }
+
+    /**
+     * Returns up to maxResult values in the tick range (afterTick, untilTick], the latest ones first. Called
+     * concurrently with the writes, without any lock held.
+     */
+    protected abstract List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResult) throws SQLException, IOException;
     protected abstract Long retrieveLastTick(Resolution resolution) throws SQLException;
 
+    /**
+     * Removes values before the given tick. Implementations may keep some of them to only drop whole partitions.
+     */
+    protected abstract void dropValuesBefore(Resolution resolution, long gameTick) throws SQLException, IOException;
+
     protected void addMetric(FactorioMetric metric, SeriesData seriesData) throws SQLException, IOException {
         if(!initialised) {
             throw new IllegalStateException("Not initialised");
         }
-        while (metric.getGameTick() - seriesData.lastStoredTick > seriesData.resolution.ticksPerUnit()) {
-            long nextTick = seriesData.lastStoredTick + seriesData.resolution.ticksPerUnit();
-            if(!seriesData.inputBuffer.isEmpty()) {
+        closeBucket(seriesData, metric.getGameTick());
+        seriesData.accumulator.add(metric);
+    }
+
+    /**
+     * Stores and rolls up the open bucket if the given tick is past it.
+     */
+    private void closeBucket(SeriesData seriesData, long gameTick) throws SQLException, IOException {
+        final long ticksPerUnit = seriesData.resolution.ticksPerUnit();
+        final long gap = gameTick - seriesData.lastStoredTick;
+        if(gap > ticksPerUnit) {
+            final long nextTick = seriesData.lastStoredTick + ticksPerUnit;
+            final BucketAccumulator accumulator = seriesData.accumulator;
+            long emptyBuckets = (gap - 1) / ticksPerUnit;
+            if(!accumulator.isEmpty()) {
                 // Don't store empty values, it screws up the graph
-                storeValue(seriesData.resolution, new FactorioMetric(nextTick, aggregate(nextTick, seriesData.inputBuffer)));
+                storeValue(seriesData.resolution, accumulator.aggregate(nextTick, seriesData.aggregator, ticksPerUnit));
+                final SeriesData coarser = seriesData.coarser;
+                if(coarser != null) {
+                    closeBucket(coarser, nextTick);
+                    coarser.accumulator.merge(accumulator);
+                }
+                accumulator.reset();
+                emptyBuckets--;
             }
-            seriesData.lastStoredTick = nextTick;
+            // Skip the empty buckets of a gap at once
+            accumulator.skip(emptyBuckets);
+            seriesData.lastStoredTick += (gap - 1) / ticksPerUnit * ticksPerUnit;
         }
-        seriesData.inputBuffer.add(metric);
     }
 
     protected void storeValue(Resolution resolution, FactorioMetric metric) throws SQLException, IOException {
-        doStoreValue(resolution, metric);
-        if(applicationEventPublisher != null) {
-            applicationEventPublisher.publishEvent(new MetricEvent(this, seriesName, resolution, metric));
-        }
-    }
-
-    protected Map<String, Long> aggregate(long targetTick, List<FactorioMetric> metrics) {
-        // This is a simple max-aggregation
-        Map<String, AtomicLong> sum = new HashMap<>();
-        if(!metrics.isEmpty()) {
-            for (FactorioMetric a : metrics) {
-                for (Map.Entry<String, Long> entry : a.getData().entrySet()) {
-                    AtomicLong atomicLong = sum.computeIfAbsent(entry.getKey(), ignored -> new AtomicLong(0L));
-                    atomicLong.set(Math.max(atomicLong.get(), entry.getValue()));
+        if(writer != null) {
+            final PendingValue value = new PendingValue(resolution, metric);
+            unflushed.addLast(value);
+            try {
+                if(!writeFailing) {
+                    writeQueue.put(value);
+                } else if(!writeQueue.offer(value)) {
+                    // Blocking would stall the collection until the storage is back, neither serve nor publish it
+                    unflushed.removeLastOccurrence(value);
+                    droppedValues.incrementAndGet();
+                    log.warn("Write queue of {} is full while writes are failing, dropping {} value at tick {}", seriesName, resolution, metric.getGameTick());
+                    return;
                 }
+            } catch (InterruptedException e) {
+                unflushed.removeLastOccurrence(value);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing value");
             }
+        } else {
+            doStoreValue(resolution, metric);
+        }
+        final MetricRingBuffer hotTier = hotTiers.get(resolution);
+        if(hotTier != null) {
+            hotTier.add(metric);
+        }
+        if(applicationEventPublisher != null) {
+            applicationEventPublisher.publishEvent(new MetricEvent(this, seriesName, resolution, metric));
         }
-        return sum.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().get()));
     }
 
     @Override
@@ -101,8 +528,9 @@ public abstract class SQLFactorioTimeSeriesRepositoryImpl implements FactorioTim
         }
         lock.lock();
         try {
-            for (SeriesData value : seriesDataMap.values()) {
-                addMetric(metric, value);
+            addMetric(metric, finest);
+            if(checkpointFile != null && System.nanoTime() - nextCheckpoint >= 0) {
+                writeCheckpoint();
             }
         } catch (SQLException | IOException e) {
             throw new RuntimeException(e);
@@ -112,29 +540,100 @@ public abstract class SQLFactorioTimeSeriesRepositoryImpl implements FactorioTim
     }
 
     @Override
-    public List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, long maxResults) {
+    public List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, Long untilGameTick, long maxResults) {
         if(!initialised) {
             throw new IllegalStateException("Not initialised");
         }
-        lock.lock();
+        // Reads don't take the store lock, the values in flight are in unflushed until after they are committed
         try {
-            return retrieveValues(resolution, Optional.ofNullable(afterGameTick).orElse(0L), maxResults);
+            final long afterTick = Optional.ofNullable(afterGameTick).orElse(0L);
+            final long untilTick = Optional.ofNullable(untilGameTick).orElse(Long.MAX_VALUE);
+            final MetricRingBuffer hotTier = hotTiers.get(resolution);
+            if(hotTier != null) {
+                final List<FactorioMetric> recent = hotTier.retrieve(afterTick, untilTick, maxResults);
+                if(recent != null) {
+                    return recent;
+                }
+            }
+            // Snapshot before reading, values committed in between are found twice and not at all otherwise
+            final List<FactorioMetric> pending = new ArrayList<>();
+            for (PendingValue value : unflushed) {
+                final long gameTick = value.metric().getGameTick();
+                if(value.resolution().equals(resolution) && gameTick > afterTick && gameTick <= untilTick) {
+                    pending.add(value.metric());
+                }
+            }
+            final List<FactorioMetric> stored = retrieveValues(resolution, afterTick, untilTick, maxResults);
+            if(pending.isEmpty()) {
+                return stored;
+            }
+            final TreeMap<Long, FactorioMetric> merged = new TreeMap<>(Comparator.reverseOrder());
+            for (FactorioMetric metric : stored) {
+                merged.put(metric.getGameTick(), metric);
+            }
+            for (FactorioMetric metric : pending) {
+                merged.put(metric.getGameTick(), metric);
+            }
+            final List<FactorioMetric> result = new ArrayList<>(merged.values());
+            return result.size() > maxResults ? new ArrayList<>(result.subList(0, (int) maxResults)) : result;
         } catch (SQLException | IOException e) {
             throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean hasRetention(Resolution resolution) {
+        return retentionTicks.containsKey(resolution);
+    }
+
+    @Override
+    public Long getRetentionHorizon(Resolution resolution) {
+        return retentionHorizons.get(resolution);
+    }
+
+    @Override
+    public String getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public Long getLastClosedTick(Resolution resolution) {
+        if(!initialised) {
+            throw new IllegalStateException("Not initialised");
+        }
+        lock.lock();
+        try {
+            final SeriesData seriesData = seriesDataMap.get(resolution);
+            return seriesData == null ? null : seriesData.lastStoredTick;
         } finally {
             lock.unlock();
         }
     }
 
+    protected record PendingValue(Resolution resolution, FactorioMetric metric) {
+
+    }
+
+    private enum WriteResult {
+        WRITTEN,
+        /** Failed for a reason that won't go away */
+        REJECTED,
+        /** Still failing after the last attempt or on shutdown */
+        FAILED
+    }
+
     protected static class SeriesData {
 
         private final Resolution resolution;
-        private final List<FactorioMetric> inputBuffer;
+        private final Aggregator aggregator;
+        private final BucketAccumulator accumulator;
+        private SeriesData coarser;
         private long lastStoredTick;
 
-        public SeriesData(Resolution resolution, List<FactorioMetric> inputBuffer, long lastStoredTick) {
+        public SeriesData(Resolution resolution, Aggregator aggregator, long lastStoredTick, BucketAccumulator accumulator) {
             this.resolution = resolution;
-            this.inputBuffer = inputBuffer;
+            this.aggregator = aggregator;
+            this.accumulator = accumulator;
             this.lastStoredTick = lastStoredTick;
         }
     }
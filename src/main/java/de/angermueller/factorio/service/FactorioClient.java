@@ -1,40 +1,132 @@
 package de.angermueller.factorio.service;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import de.angermueller.factorio.domain.ItemRegistry;
 import de.angermueller.factorio.util.LuaException;
-import jakarta.annotation.PostConstruct;
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.UUID;
+import java.util.*;
+import java.util.stream.Collectors;
 
+@Slf4j
 public class FactorioClient {
 
-    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final byte[] LUA_ERROR_MARKER = "Error:".getBytes(StandardCharsets.US_ASCII);
+    private static final ScriptModule COLLECT_METRICS = ScriptModule.load("collect_metrics");
+    private static final List<ScriptModule> MODULES = List.of(COLLECT_METRICS);
+    private static final String PROBE_COMMAND = ScriptModule.probeCommand(MODULES);
     private final RCONClient client;
-    private final String functionName = "collectMetrics" + UUID.randomUUID().toString().replace("-", "");
-    private boolean scriptLoaded = false;
+    private final boolean deltaMode;
+    private final WireFormat wireFormat;
+    private final String functionName = COLLECT_METRICS.getQualifiedName();
+    private final List<SourceState> sources;
+    private final String sourcesLiteral;
+    private final String fullCollectCommand;
+    private final ParsedResponse response = new ParsedResponse();
+    private final Sampling sampling;
+    private Long lastSeq = null;
+    /** Number of the last buffered sample applied */
+    private Long lastSample = null;
+    /** Connection generation the modules were last verified on, -1 if never */
+    private long verifiedGeneration = -1L;
+    private boolean samplingStarted = false;
+    /** Number of times modules were installed */
+    private long scriptInstalls = 0L;
 
     public FactorioClient(RCONClient client) {
+        this(client, true, WireFormat.COMPACT);
+    }
+
+    /**
+     * @param deltaMode  Only transfer the counters that changed since the last collection and keep the complete state
+     *                   on this side
+     * @param wireFormat Format the collection script should answer in
+     */
+    public FactorioClient(RCONClient client, boolean deltaMode, WireFormat wireFormat) {
+        this(client, deltaMode, wireFormat, List.of(StatisticSource.PLAYER_ITEMS));
+    }
+
+    /**
+     * @param sources Statistics to collect, all of them in one round trip. The results have one entry per source in
+     *                the same order
+     */
+    public FactorioClient(RCONClient client, boolean deltaMode, WireFormat wireFormat, List<StatisticSource> sources) {
+        this(client, deltaMode, wireFormat, sources, null);
+    }
+
+    /**
+     * @param sampling Let the game sample the sources itself and only drain its buffer, null to sample on every
+     *                 collection
+     */
+    public FactorioClient(RCONClient client, boolean deltaMode, WireFormat wireFormat, List<StatisticSource> sources, Sampling sampling) {
         assert client != null;
+        assert wireFormat != null;
+        assert sources != null && !sources.isEmpty();
         this.client = client;
+        this.deltaMode = deltaMode;
+        this.wireFormat = wireFormat;
+        this.sources = sources.stream().map(SourceState::new).toList();
+        this.sourcesLiteral = sources.stream().map(StatisticSource::toLua).collect(Collectors.joining(",", "{", "}"));
+        this.fullCollectCommand = collectCommand(null);
+        this.sampling = sampling;
+    }
+
+    /**
+     * Whether the game samples the sources itself, a collection then returns every sample taken since the last one.
+     */
+    public boolean isBuffered() {
+        return sampling != null;
     }
 
-    public void loadScript() throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024*1024);
-        try(InputStream in = Objects.requireNonNull(getClass().getClassLoader().getResourceAsStream("collect_metrics.lua"))) {
-            in.transferTo(out);
+    public List<StatisticSource> getSources() {
+        return sources.stream().map(state -> state.source).toList();
+    }
+
+    /**
+     * Number of times the script modules were installed. Whenever it changes, the game restarted or loaded a save
+     * since, so game ticks and sample numbers may start over.
+     */
+    public long getScriptInstalls() {
+        return scriptInstalls;
+    }
+
+    /**
+     * Makes sure the current version of every module is installed. Only probes once per connection, the modules
+     * survive reconnects unless the server restarted or loaded a save in between.
+     */
+    public void ensureScripts() throws IOException {
+        final long generation = client.getConnectionGeneration();
+        if(generation == verifiedGeneration) {
+            return;
         }
-        final String script = out.toString(StandardCharsets.UTF_8).replace("collect_metrics", functionName);
-        sendCommand("/sc " + script);
-        scriptLoaded = true;
+        final String installed = sendCommand(PROBE_COMMAND).trim();
+        boolean changed = false;
+        for (int i = 0; i < MODULES.size(); i++) {
+            if(i < installed.length() && installed.charAt(i) == '1') {
+                continue;
+            }
+            log.debug("Installing script module {}", MODULES.get(i));
+            sendCommand(MODULES.get(i).installCommand());
+            changed = true;
+        }
+        if(changed) {
+            // Fresh modules start without state
+            scriptInstalls++;
+            samplingStarted = false;
+            lastSeq = null;
+            // Sample numbers of a buffer from a loaded save don't continue ours
+            lastSample = null;
+        }
+        // The probe may have opened the connection, take the generation it ran on
+        verifiedGeneration = client.getConnectionGeneration();
     }
 
     protected String sendCommand(String command) throws IOException {
@@ -46,34 +138,513 @@ public class FactorioClient {
         return response;
     }
 
-    public CollectionResult collect() throws IOException {
-        if(!scriptLoaded) {
-            loadScript();
+    /**
+     * Returns the current counters or, if {@link #isBuffered() buffered}, the samples taken since the last
+     * collection in order. A paused game without pending samples results in a single paused result.
+     */
+    public List<CollectionResult> collect() throws IOException {
+        ensureScripts();
+        try {
+            return collectOnce();
+        } catch (LuaException e) {
+            if(e.getMessage() == null || !e.getMessage().contains(functionName) || !e.getMessage().contains("nil value")) {
+                throw e;
+            }
+            // Gone without a new connection, e.g. a save was loaded
+            log.debug("Script module {} missing, installing it again", COLLECT_METRICS);
+            verifiedGeneration = -1L;
+            ensureScripts();
+            return collectOnce();
         }
-        return MAPPER.readValue(sendCommand("/sc rcon.print(" + functionName + "())"), CollectionResult.class);
     }
 
-    @Getter
-    @JsonIgnoreProperties(ignoreUnknown = true)
-    public static class CollectionResult {
+    private List<CollectionResult> collectOnce() throws IOException {
+        if(sampling != null) {
+            return drain();
+        }
+        return List.of(collectCurrent());
+    }
+
+    private CollectionResult collectCurrent() throws IOException {
+        fetch(deltaMode ? lastSeq : null);
+        if(!response.paused && !apply(lastSeq)) {
+            // A response got lost in between or the dictionaries diverged, the script's state no longer matches ours
+            log.debug("Response {} does not continue {}, requesting full resync", response.seq, lastSeq);
+            lastSeq = null;
+            fetch(null);
+            if(!apply(null)) {
+                throw new IOException("Inconsistent full response " + response.seq);
+            }
+        }
+        if(response.paused) {
+            return new CollectionResult(true, 0L, 0L, false, List.of());
+        }
+        lastSeq = response.seq;
+        return toResult();
+    }
+
+    private CollectionResult toResult() {
+        return new CollectionResult(false, response.gameTick, response.seq, response.full, response.sample, sources.stream().map(SourceState::toCounters).toList());
+    }
+
+    private List<CollectionResult> drain() throws IOException {
+        if(!samplingStarted) {
+            sendCommand("/sc " + functionName + "_start(" + sampling.intervalTicks() + ", " + sampling.capacity() + ", " + sourcesLiteral + ")");
+            samplingStarted = true;
+        }
+        final List<CollectionResult> results = new ArrayList<>();
+        final Batch batch = fetchBatch(deltaMode ? lastSeq : null, results);
+        if(!batch.consistent) {
+            // Everything not applied yet is sent again in full, the samples before stay valid
+            log.debug("Sample batch does not continue {}, requesting full resync after sample {}", lastSeq, lastSample);
+            lastSeq = null;
+            if(!fetchBatch(null, results).consistent) {
+                throw new IOException("Inconsistent full sample batch after sample " + lastSample);
+            }
+        }
+        if(batch.stale) {
+            // Handlers don't survive loading a save
+            log.debug("Game stopped sampling, starting again");
+            samplingStarted = false;
+        }
+        if(results.isEmpty() && batch.paused) {
+            return List.of(new CollectionResult(true, 0L, 0L, false, List.of()));
+        }
+        return results;
+    }
+
+    private String drainCommand(Long sinceSeq) {
+        return "/sc rcon.print(" + functionName + "_drain(" + (sinceSeq == null ? "nil" : sinceSeq) + ", " + (wireFormat == WireFormat.COMPACT) + ", " + (lastSample == null ? "nil" : lastSample) + "))";
+    }
+
+    /**
+     * Applies the samples of a batch one by one as they are parsed and stops at the first one that does not fit. The
+     * results and the position to drain from next time are only taken over once the whole response parsed, samples of
+     * a broken response are drained again.
+     */
+    private Batch fetchBatch(Long sinceSeq, List<CollectionResult> results) throws IOException {
+        final Batch batch = new Batch();
+        batch.lastSeq = sinceSeq;
+        batch.lastSample = lastSample;
+        client.sendCommand(drainCommand(sinceSeq), body -> {
+            checkLuaError(body);
+            try(JsonParser parser = createParser(body)) {
+                if(parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Expecting a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "paused" -> batch.paused = parser.getBooleanValue();
+                        case "stale" -> batch.stale = parser.getBooleanValue();
+                        case "samples" -> {
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                if(!batch.consistent) {
+                                    parser.skipChildren();
+                                    continue;
+                                }
+                                response.parseFields(parser);
+                                if(!apply(batch.lastSeq)) {
+                                    batch.consistent = false;
+                                    continue;
+                                }
+                                batch.lastSeq = response.seq;
+                                batch.lastSample = response.sample;
+                                batch.results.add(toResult());
+                            }
+                        }
+                        default -> parser.skipChildren();
+                    }
+                }
+            }
+            return null;
+        });
+        lastSeq = batch.lastSeq;
+        lastSample = batch.lastSample;
+        results.addAll(batch.results);
+        return batch;
+    }
+
+    private static class Batch {
+
+        private boolean paused;
+        private boolean stale;
+        private boolean consistent = true;
+        private Long lastSeq;
+        private Long lastSample;
+        private final List<CollectionResult> results = new ArrayList<>();
+
+    }
+
+    private String collectCommand(Long sinceSeq) {
+        return "/sc rcon.print(" + functionName + "(" + (sinceSeq == null ? "nil" : sinceSeq) + ", " + (wireFormat == WireFormat.COMPACT) + ", " + sourcesLiteral + "))";
+    }
+
+    private void fetch(Long sinceSeq) throws IOException {
+        final String command = sinceSeq == null ? fullCollectCommand : collectCommand(sinceSeq);
+        client.sendCommand(command, body -> {
+            checkLuaError(body);
+            try(JsonParser parser = createParser(body)) {
+                response.parse(parser);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Merges the last parsed response into the counter state. Returns false if it does not fit onto the state.
+     *
+     * @param sinceSeq Sequence number of the response the state is at, null if unknown
+     */
+    private boolean apply(Long sinceSeq) {
+        if(!response.full && (sinceSeq == null || response.seq != sinceSeq + 1)) {
+            return false;
+        }
+        if(response.sourceCount != sources.size()) {
+            return false;
+        }
+        // Check every source first, a response is applied completely or not at all
+        for (SourceState source : sources) {
+            if(!source.fits(response.full)) {
+                return false;
+            }
+        }
+        for (SourceState source : sources) {
+            source.apply(response.full);
+        }
+        return true;
+    }
+
+    private static JsonParser createParser(ByteBuffer body) throws IOException {
+        if(body.hasArray()) {
+            return JSON_FACTORY.createParser(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        }
+        return JSON_FACTORY.createParser(new ByteBufferBackedInputStream(body));
+    }
+
+    private static void checkLuaError(ByteBuffer body) {
+        final int end = body.limit() - LUA_ERROR_MARKER.length;
+        outer:
+        for (int i = body.position(); i <= end; i++) {
+            for (int j = 0; j < LUA_ERROR_MARKER.length; j++) {
+                if(body.get(i + j) != LUA_ERROR_MARKER[j]) {
+                    continue outer;
+                }
+            }
+            final ByteBuffer message = body.duplicate().position(i + LUA_ERROR_MARKER.length);
+            throw new LuaException(StandardCharsets.US_ASCII.decode(message).toString());
+        }
+    }
+
+    /**
+     * In-game sampling every {@code intervalTicks} into a ring buffer of {@code capacity} samples.
+     */
+    public record Sampling(int intervalTicks, int capacity) {
+
+        public Sampling {
+            assert intervalTicks > 0 && capacity > 0;
+        }
+
+    }
+
+    public enum WireFormat {
+        /** Item names as object keys in every response */
+        JSON,
+        /** Item names sent once, counters as positional arrays or index/value pairs */
+        COMPACT
+    }
+
+    /**
+     * Reusable holder for a streamed response, the counters of each source are parsed into its {@link SourceState}.
+     */
+    private class ParsedResponse {
 
         private boolean paused;
         private long gameTick;
-        private Map<String, Long> itemsConsumed;
-        private Map<String, Long> itemsProduced;
+        private long seq;
+        private boolean full;
+        private long sample;
+        private int sourceCount;
+
+        void parse(JsonParser parser) throws IOException {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expecting a JSON object");
+            }
+            parseFields(parser);
+        }
+
+        /**
+         * Parses the fields of the object the parser is at.
+         */
+        void parseFields(JsonParser parser) throws IOException {
+            paused = false;
+            gameTick = 0L;
+            seq = 0L;
+            full = false;
+            sample = 0L;
+            sourceCount = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "paused" -> paused = parser.getBooleanValue();
+                    case "gameTick" -> gameTick = parser.getLongValue();
+                    case "seq" -> seq = parser.getLongValue();
+                    case "full" -> full = parser.getBooleanValue();
+                    case "sample" -> sample = parser.getLongValue();
+                    case "sources" -> {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            if(sourceCount == sources.size()) {
+                                throw new IOException("More sources in the response than requested");
+                            }
+                            sources.get(sourceCount++).parse(parser);
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Complete counter state of a source and the update of the last response. The updates are collected as
+     * index/value pairs and checked with {@link #fits(boolean)}, so a response that turns out not to fit the current
+     * state can be dropped without having touched it.
+     */
+    private class SourceState {
+
+        private final StatisticSource source;
+        // The item names are append-only so results can share the array
+        private String[] itemNames = new String[256];
+        private int[] itemIds = new int[256];
+        private int itemCount = 0;
+        private final Map<String, Integer> itemIndex = new HashMap<>();
+        private long[] itemsConsumed = new long[256];
+        private long[] itemsProduced = new long[256];
+        private int base;
+        private final List<String> newNames = new ArrayList<>();
+        private final Map<String, Integer> newNameIndex = new HashMap<>();
+        private final CounterUpdates consumed = new CounterUpdates();
+        private final CounterUpdates produced = new CounterUpdates();
+
+        SourceState(StatisticSource source) {
+            this.source = source;
+        }
+
+        void parse(JsonParser parser) throws IOException {
+            base = 0;
+            newNames.clear();
+            newNameIndex.clear();
+            consumed.clear();
+            produced.clear();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "base" -> base = parser.getIntValue();
+                    case "names" -> {
+                        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                            newNames.add(parser.getText());
+                        }
+                    }
+                    case "in" -> consumed.readPositional(parser);
+                    case "out" -> produced.readPositional(parser);
+                    case "din" -> consumed.readPairs(parser);
+                    case "dout" -> produced.readPairs(parser);
+                    case "itemsConsumed" -> consumed.readObject(parser, this);
+                    case "itemsProduced" -> produced.readObject(parser, this);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        private int indexOf(String name) {
+            Integer index = itemIndex.get(name);
+            if(index != null) {
+                return index;
+            }
+            return itemCount + newNameIndex.computeIfAbsent(name, ignored -> {
+                newNames.add(name);
+                return newNames.size() - 1;
+            });
+        }
+
+        /**
+         * Whether the parsed update continues the current state, checked before {@link #apply(boolean)} touches it.
+         */
+        boolean fits(boolean full) {
+            // Full compact responses number the items from scratch
+            final int knownItems = wireFormat == WireFormat.COMPACT && full ? 0 : itemCount;
+            if(wireFormat == WireFormat.COMPACT && base != knownItems) {
+                return false;
+            }
+            final int count = knownItems + newNames.size();
+            return consumed.fits(count) && produced.fits(count);
+        }
+
+        void apply(boolean full) {
+            if(wireFormat == WireFormat.COMPACT && full) {
+                // Don't touch the array previous results refer to
+                itemNames = new String[Math.max(256, newNames.size())];
+                itemIds = new int[itemNames.length];
+                itemIndex.clear();
+                itemCount = 0;
+            }
+            for (String name : newNames) {
+                if(itemCount == itemNames.length) {
+                    itemNames = Arrays.copyOf(itemNames, itemCount * 2);
+                    itemIds = Arrays.copyOf(itemIds, itemCount * 2);
+                }
+                itemNames[itemCount] = name;
+                itemIds[itemCount] = ItemRegistry.idOf(name);
+                itemIndex.put(name, itemCount);
+                itemCount++;
+            }
+            if(itemsConsumed.length < itemCount) {
+                itemsConsumed = Arrays.copyOf(itemsConsumed, itemNames.length);
+                itemsProduced = Arrays.copyOf(itemsProduced, itemNames.length);
+            }
+            if(full) {
+                Arrays.fill(itemsConsumed, 0L);
+                Arrays.fill(itemsProduced, 0L);
+            }
+            consumed.applyTo(itemsConsumed);
+            produced.applyTo(itemsProduced);
+        }
+
+        SourceCounters toCounters() {
+            return new SourceCounters(source, itemNames, itemIds, Arrays.copyOf(itemsConsumed, itemCount), Arrays.copyOf(itemsProduced, itemCount));
+        }
+
+    }
+
+    private static class CounterUpdates {
+
+        private int[] indices = new int[256];
+        private long[] values = new long[256];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int index, long value) {
+            if(size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            indices[size] = index;
+            values[size] = value;
+            size++;
+        }
+
+        void readPositional(JsonParser parser) throws IOException {
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                add(index++, parser.getLongValue());
+            }
+        }
+
+        void readPairs(JsonParser parser) throws IOException {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                final int index = parser.getIntValue();
+                parser.nextToken();
+                add(index, parser.getLongValue());
+            }
+        }
+
+        void readObject(JsonParser parser, SourceState source) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final int index = source.indexOf(parser.getCurrentName());
+                parser.nextToken();
+                add(index, parser.getLongValue());
+            }
+        }
+
+        boolean fits(int count) {
+            for (int i = 0; i < size; i++) {
+                if(indices[i] < 0 || indices[i] >= count) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void applyTo(long[] target) {
+            for (int i = 0; i < size; i++) {
+                target[indices[i]] = values[i];
+            }
+        }
+
+    }
+
+    @Getter
+    public static class CollectionResult {
+
+        private final boolean paused;
+        private final long gameTick;
+        private final long seq;
+        private final boolean full;
+        /** Number of the sample in the game's buffer, 0 if not sampled in-game */
+        private final long sample;
+        /** Counters per source in the order of {@link FactorioClient#getSources()}, empty if paused */
+        private final List<SourceCounters> sources;
+
+        public CollectionResult(boolean paused, long gameTick, long seq, boolean full, List<SourceCounters> sources) {
+            this(paused, gameTick, seq, full, 0L, sources);
+        }
+
+        public CollectionResult(boolean paused, long gameTick, long seq, boolean full, long sample, List<SourceCounters> sources) {
+            assert sources != null;
+            assert sample >= 0L;
+            this.paused = paused;
+            this.gameTick = gameTick;
+            this.seq = seq;
+            this.full = full;
+            this.sample = sample;
+            this.sources = sources;
+        }
 
         @Override
         public String toString() {
             return "CollectionResult{" +
                     "paused=" + paused +
                     ", gameTick=" + gameTick +
-                    ", itemsConsumed=" + Optional.ofNullable(itemsConsumed).map(m -> "<" + m.size() + " pairs>").orElse("null") +
-                    ", itemsProduced=" + Optional.ofNullable(itemsProduced).map(m -> "<" + m.size() + " pairs>").orElse("null") +
+                    ", seq=" + seq +
+                    ", full=" + full +
+                    ", sample=" + sample +
+                    ", items=<" + sources.stream().mapToInt(SourceCounters::getItemCount).sum() + ">" +
                     '}';
         }
     }
 
+    @Getter
+    public static class SourceCounters {
+
+        private final StatisticSource source;
+        private final String[] itemNames;
+        /** Ids in the {@link ItemRegistry} of the items in {@link #getItemNames()} */
+        private final int[] itemIds;
+        /** Counters by item index, an item's name is at the same index in {@link #getItemNames()} */
+        private final long[] itemsConsumed;
+        private final long[] itemsProduced;
 
+        public SourceCounters(StatisticSource source, String[] itemNames, int[] itemIds, long[] itemsConsumed, long[] itemsProduced) {
+            assert source != null;
+            assert itemsConsumed.length == itemsProduced.length && itemNames.length >= itemsConsumed.length && itemIds.length >= itemsConsumed.length;
+            this.source = source;
+            this.itemNames = itemNames;
+            this.itemIds = itemIds;
+            this.itemsConsumed = itemsConsumed;
+            this.itemsProduced = itemsProduced;
+        }
 
+        public int getItemCount() {
+            return itemsConsumed.length;
+        }
+
+    }
 
 }
@@ -0,0 +1,50 @@
+package de.angermueller.factorio.service;
+
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Factorio server to collect from, with its own RCON connection and a repository per statistic source.
+ */
+public class FactorioServer {
+
+    @Getter
+    private final String name;
+    @Getter
+    private final FactorioClient client;
+    private final Map<StatisticSource, FactorioTimeSeriesRepository> repositories;
+
+    /**
+     * @param repositories Series of every source the client collects
+     */
+    public FactorioServer(String name, FactorioClient client, Map<StatisticSource, ? extends FactorioTimeSeriesRepository> repositories) {
+        assert name != null && !name.isEmpty();
+        assert client != null && repositories != null;
+        assert repositories.keySet().containsAll(client.getSources());
+        this.name = name;
+        this.client = client;
+        this.repositories = Collections.unmodifiableMap(new LinkedHashMap<>(repositories));
+    }
+
+    public FactorioTimeSeriesRepository getRepository(StatisticSource source) {
+        return repositories.get(source);
+    }
+
+    public Collection<FactorioTimeSeriesRepository> getRepositories() {
+        return repositories.values();
+    }
+
+    @Override
+    public String toString() {
+        return "FactorioServer{" +
+                "name='" + name + '\'' +
+                ", sources=" + repositories.keySet() +
+                '}';
+    }
+
+}
@@ -0,0 +1,67 @@
+package de.angermueller.factorio.service;
+
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * The configured servers. Owns everything created for them, which is closed in reverse order of registration on
+ * shutdown, i.e. repositories before the connections they write to.
+ */
+@Slf4j
+public class FactorioServerRegistry {
+
+    private final List<FactorioServer> servers = new ArrayList<>();
+    private final Deque<AutoCloseable> resources = new ArrayDeque<>();
+
+    public synchronized void register(FactorioServer server) {
+        assert server != null;
+        final Set<String> series = new HashSet<>();
+        for (FactorioTimeSeriesRepository repository : getRepositories()) {
+            series.add(repository.getSeriesName());
+        }
+        for (FactorioServer registered : servers) {
+            if(registered.getName().equals(server.getName())) {
+                throw new IllegalArgumentException("Server '" + server.getName() + "' registered twice");
+            }
+        }
+        for (FactorioTimeSeriesRepository repository : server.getRepositories()) {
+            if(!series.add(repository.getSeriesName())) {
+                throw new IllegalArgumentException("Series '" + repository.getSeriesName() + "' of server '" + server.getName() + "' already in use");
+            }
+        }
+        servers.add(server);
+    }
+
+    /**
+     * Registers something to close on shutdown.
+     */
+    public synchronized <T extends AutoCloseable> T manage(T resource) {
+        assert resource != null;
+        resources.push(resource);
+        return resource;
+    }
+
+    public synchronized List<FactorioServer> getServers() {
+        return List.copyOf(servers);
+    }
+
+    public synchronized List<FactorioTimeSeriesRepository> getRepositories() {
+        return servers.stream().flatMap(server -> server.getRepositories().stream()).toList();
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        while (!resources.isEmpty()) {
+            final AutoCloseable resource = resources.pop();
+            try {
+                resource.close();
+            } catch (Exception e) {
+                log.warn("Unable to close {}", resource, e);
+            }
+        }
+    }
+
+}
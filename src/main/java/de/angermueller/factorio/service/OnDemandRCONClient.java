@@ -13,6 +13,7 @@ public class OnDemandRCONClient implements RCONClient {
     private final String password;
     private final Lock lock = new ReentrantLock();
     private RCONClientImpl client;
+    private volatile long connectionGeneration = 0L;
 
     public OnDemandRCONClient(String host, int port, String password) {
         assert host != null && !host.isEmpty();
@@ -26,10 +27,16 @@ public class OnDemandRCONClient implements RCONClient {
         if(client == null) {
             client = new RCONClientImpl(host, port, password);
             client.init();
+            connectionGeneration++;
         }
         return client;
     }
 
+    @Override
+    public long getConnectionGeneration() {
+        return connectionGeneration;
+    }
+
     @PreDestroy
     public void close() throws IOException {
         lock.lock();
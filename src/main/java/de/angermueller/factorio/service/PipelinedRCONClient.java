@@ -0,0 +1,448 @@
+package de.angermueller.factorio.service;
+
+import de.angermueller.factorio.util.ByteBufferPool;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RCON client that keeps several commands in flight on a single connection. Requests are written by a selector
+ * thread as soon as they are queued and responses are matched to their callers by the package id, so a slow command
+ * only delays its own caller. The connection is (re-)established on demand.
+ * <p>
+ * Packages are encoded into and decoded from pooled buffers. Response bodies are collected in a pooled heap buffer
+ * that is handed to the caller as is. With multi package responses enabled every command is followed by an empty
+ * {@code SERVERDATA_RESPONSE_VALUE} package. The server mirrors it once it has sent all fragments of the command's
+ * response, so the fragments received until then are concatenated into one body. Not every server mirrors it, so
+ * a lone empty package is sent right after connecting, and without an answer in time the connection falls back to
+ * single package responses. Then a response that fills a whole fragment is most likely truncated, the caller gets
+ * the first fragment and a warning is logged.
+ */
+@Slf4j
+public class PipelinedRCONClient implements Closeable, RCONClient {
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_BODY_BUFFER_SIZE = 4 * 1024;
+    /** Body size at which servers split responses into several packages */
+    private static final int MAX_FRAGMENT_BODY_SIZE = 4096;
+    /** Time servers get to mirror the empty package before responses are taken as single packages */
+    private static final long PROBE_TIMEOUT_MILLIS = 1000L;
+
+    private final AtomicInteger lastId = new AtomicInteger(0);
+    private final Lock lock = new ReentrantLock();
+    private final String host;
+    private final int port;
+    private final String password;
+    private final long timeoutMillis;
+    private final boolean multiPacketResponses;
+    private final ByteBufferPool ioBufferPool;
+    private final ByteBufferPool bodyBufferPool = new ByteBufferPool(false);
+    private Connection connection;
+    private volatile long connectionGeneration = 0L;
+
+    public PipelinedRCONClient(String host, int port, String password) {
+        this(host, port, password, 10000L, true, false);
+    }
+
+    public PipelinedRCONClient(String host, int port, String password, long timeoutMillis, boolean multiPacketResponses, boolean directBuffers) {
+        assert host != null && !host.isEmpty();
+        assert port > 0 && port < 65535;
+        assert timeoutMillis > 0;
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.timeoutMillis = timeoutMillis;
+        this.multiPacketResponses = multiPacketResponses;
+        this.ioBufferPool = new ByteBufferPool(directBuffers);
+    }
+
+    @Override
+    public String sendCommand(String command) throws IOException {
+        return sendCommand(command, body -> StandardCharsets.US_ASCII.decode(body).toString());
+    }
+
+    @Override
+    public <T> T sendCommand(String command, ResponseHandler<T> handler) throws IOException {
+        final ByteBuffer body = await(send(command));
+        try {
+            return handler.handle(body);
+        } finally {
+            bodyBufferPool.release(body);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> sendCommandAsync(String command) {
+        return send(command).thenApply(body -> {
+            try {
+                return StandardCharsets.US_ASCII.decode(body).toString();
+            } finally {
+                bodyBufferPool.release(body);
+            }
+        });
+    }
+
+    @Override
+    public long getConnectionGeneration() {
+        return connectionGeneration;
+    }
+
+    protected CompletableFuture<ByteBuffer> send(String command) {
+        final Connection connection;
+        try {
+            connection = getConnection();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.send(RCONPackageCodec.TYPE_EXEC_COMMAND, command, connection.multiPacketResponses);
+    }
+
+    protected Connection getConnection() throws IOException {
+        lock.lock();
+        try {
+            if(connection == null || !connection.isOpen()) {
+                connection = null;
+                Connection newConnection = new Connection();
+                newConnection.open();
+                connection = newConnection;
+                connectionGeneration++;
+            }
+            return connection;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int nextId() {
+        // Ids must stay positive, -1 signals a failed authentication
+        return lastId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+    }
+
+    private <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if(e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("No response within " + timeoutMillis + " ms");
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new SocketTimeoutException("No response within " + timeoutMillis + " ms");
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if(connection != null) {
+                connection.close(new IOException("Client closed"));
+                connection = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected class Connection {
+
+        private final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+        private final Map<Integer, PendingRequest> sentinels = new ConcurrentHashMap<>();
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private ByteBuffer readBuffer;
+        private ByteBuffer currentWrite;
+        private SocketChannel channel;
+        private Selector selector;
+        private SelectionKey key;
+        private volatile boolean open = false;
+        private volatile int authId = 0;
+        /** Whether the server mirrors empty packages, so responses of several packages can be reassembled */
+        private volatile boolean multiPacketResponses = false;
+
+        public void open() throws IOException {
+            log.trace("Connecting to {}:{}", host, port);
+            selector = Selector.open();
+            channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(host, port), 1000);
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                channel.close();
+                selector.close();
+                throw e;
+            }
+            readBuffer = ioBufferPool.acquire(INITIAL_READ_BUFFER_SIZE);
+            open = true;
+            final Thread thread = new Thread(this::run, "rcon-" + host + ":" + port);
+            thread.setDaemon(true);
+            thread.start();
+            log.debug("Connected to {}:{}", host, port);
+            if(password != null) {
+                log.trace("Sending authentication");
+                try {
+                    bodyBufferPool.release(await(send(RCONPackageCodec.TYPE_AUTH, password, false)));
+                } catch (IOException e) {
+                    close(e);
+                    throw e;
+                }
+                log.debug("Authenticated");
+            }
+            if(PipelinedRCONClient.this.multiPacketResponses) {
+                multiPacketResponses = probe();
+            }
+        }
+
+        /**
+         * Sends a lone empty package and waits for the server to mirror it.
+         */
+        private boolean probe() throws IOException {
+            final CompletableFuture<ByteBuffer> future = send(RCONPackageCodec.TYPE_RESPONSE_VALUE, "", false);
+            try {
+                try {
+                    bodyBufferPool.release(future.get(Math.min(PROBE_TIMEOUT_MILLIS, timeoutMillis), TimeUnit.MILLISECONDS));
+                    return true;
+                } catch (ExecutionException e) {
+                    if(!(e.getCause() instanceof TimeoutException)) {
+                        throw e;
+                    }
+                } catch (TimeoutException e) {
+                    future.cancel(false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close(new IOException("Interrupted"));
+                throw new InterruptedIOException("Interrupted while probing");
+            } catch (ExecutionException e) {
+                final IOException cause = e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+                close(cause);
+                throw cause;
+            }
+            log.warn("{}:{} doesn't mirror empty packages, responses of more than one package will be truncated", host, port);
+            return false;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public CompletableFuture<ByteBuffer> send(int type, String body, boolean withSentinel) {
+            if(!open) {
+                return CompletableFuture.failedFuture(new IOException("Connection closed"));
+            }
+            final int id = nextId();
+            final int sentinelId = withSentinel ? nextId() : 0;
+            if(type == RCONPackageCodec.TYPE_AUTH) {
+                authId = id;
+            }
+            final PendingRequest request = new PendingRequest(new CompletableFuture<ByteBuffer>().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS), withSentinel);
+            pending.put(id, request);
+            if(withSentinel) {
+                sentinels.put(sentinelId, request);
+            }
+            request.future.whenComplete((response, e) -> {
+                pending.remove(id, request);
+                if(withSentinel) {
+                    sentinels.remove(sentinelId, request);
+                }
+            });
+            final int size = RCONPackageCodec.encodedSize(body) + (withSentinel ? RCONPackageCodec.encodedSize("") : 0);
+            final ByteBuffer buffer = ioBufferPool.acquire(size);
+            RCONPackageCodec.encode(id, type, body, buffer);
+            if(withSentinel) {
+                RCONPackageCodec.encode(sentinelId, RCONPackageCodec.TYPE_RESPONSE_VALUE, "", buffer);
+            }
+            buffer.flip();
+            log.debug("Sending package {} of type {} ({} bytes)", id, type, size);
+            writeQueue.add(buffer);
+            selector.wakeup();
+            if(!open) {
+                // Closed concurrently, make sure nobody waits forever
+                request.future.completeExceptionally(new IOException("Connection closed"));
+            }
+            return request.future;
+        }
+
+        private void run() {
+            try {
+                while (open) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    if(!open) {
+                        break;
+                    }
+                    if(key.isReadable()) {
+                        read();
+                    }
+                    write();
+                }
+            } catch (IOException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                close(new IOException("Protocol error", e));
+            } finally {
+                ioBufferPool.release(readBuffer);
+                ioBufferPool.release(currentWrite);
+                readBuffer = null;
+                currentWrite = null;
+            }
+        }
+
+        private void read() throws IOException {
+            if(channel.read(readBuffer) == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+            readBuffer.flip();
+            int length;
+            while ((length = RCONPackageCodec.completePackageLength(readBuffer)) != -1) {
+                dispatch(length);
+            }
+            final int remaining = readBuffer.remaining();
+            readBuffer.compact();
+            if(remaining >= 4) {
+                // Make room for the complete package we are waiting for
+                readBuffer = ioBufferPool.ensureCapacity(readBuffer, readBuffer.getInt(0) + 4);
+            }
+        }
+
+        private void dispatch(int length) throws IOException {
+            final int id = RCONPackageCodec.id(readBuffer);
+            final int type = RCONPackageCodec.type(readBuffer);
+            log.debug("Received package {} of type {} ({} bytes)", id, type, length);
+            if(type == RCONPackageCodec.TYPE_AUTH_RESPONSE) {
+                RCONPackageCodec.skip(readBuffer, length);
+                final PendingRequest request = pending.get(authId);
+                if(request != null) {
+                    if(id == authId) {
+                        complete(request);
+                    } else {
+                        request.future.completeExceptionally(new IOException("Auth failed"));
+                    }
+                }
+                return;
+            }
+            if(id == authId) {
+                // Empty value some servers send ahead of the auth response
+                RCONPackageCodec.skip(readBuffer, length);
+                return;
+            }
+            final PendingRequest sentinelRequest = sentinels.get(id);
+            if(sentinelRequest != null) {
+                RCONPackageCodec.skip(readBuffer, length);
+                complete(sentinelRequest);
+                return;
+            }
+            final PendingRequest request = pending.get(id);
+            if(request == null) {
+                log.debug("Discarding response for unknown id {}", id);
+                RCONPackageCodec.skip(readBuffer, length);
+                return;
+            }
+            final int bodyLength = RCONPackageCodec.bodyLength(length);
+            if(request.body == null) {
+                request.body = bodyBufferPool.acquire(Math.max(bodyLength, INITIAL_BODY_BUFFER_SIZE));
+            } else {
+                request.body = bodyBufferPool.ensureCapacity(request.body, request.body.position() + bodyLength);
+            }
+            RCONPackageCodec.readBody(readBuffer, length, request.body);
+            if(!request.withSentinel) {
+                if(bodyLength >= MAX_FRAGMENT_BODY_SIZE) {
+                    log.warn("Response {} fills a whole package ({} bytes) and is probably truncated, {}", id, bodyLength,
+                            PipelinedRCONClient.this.multiPacketResponses ? "the server doesn't mirror empty packages" : "enable rcon.multi-packet-responses");
+                }
+                complete(request);
+            }
+        }
+
+        private void complete(PendingRequest request) {
+            final ByteBuffer body = request.body != null ? request.body : bodyBufferPool.acquire(0);
+            request.body = null;
+            body.flip();
+            if(!request.future.complete(body)) {
+                bodyBufferPool.release(body);
+            }
+        }
+
+        private void write() throws IOException {
+            while (true) {
+                if(currentWrite == null) {
+                    currentWrite = writeQueue.poll();
+                    if(currentWrite == null) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                }
+                channel.write(currentWrite);
+                if(currentWrite.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                ioBufferPool.release(currentWrite);
+                currentWrite = null;
+            }
+        }
+
+        public void close(IOException cause) {
+            if(!open && channel != null && !channel.isOpen()) {
+                return;
+            }
+            open = false;
+            log.debug("Closing connection to {}:{} because of {}", host, port, cause.toString());
+            try {
+                selector.wakeup();
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Error while closing connection", e);
+            }
+            for (PendingRequest request : pending.values()) {
+                request.future.completeExceptionally(cause);
+            }
+            pending.clear();
+            sentinels.clear();
+            writeQueue.clear();
+        }
+
+    }
+
+    private static class PendingRequest {
+
+        private final CompletableFuture<ByteBuffer> future;
+        /** Whether the response ends with the mirrored empty package */
+        private final boolean withSentinel;
+        /** Body received so far, only touched by the selector thread */
+        private ByteBuffer body;
+
+        private PendingRequest(CompletableFuture<ByteBuffer> future, boolean withSentinel) {
+            this.future = future;
+            this.withSentinel = withSentinel;
+        }
+
+    }
+
+}
@@ -1,10 +1,47 @@
 package de.angermueller.factorio.service;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 public interface RCONClient {
 
     String sendCommand(String command) throws IOException;
 
-}
+    /**
+     * Sends a command and hands the raw response body to the handler. The buffer is only valid while the handler
+     * runs, so implementations can recycle it afterwards.
+     */
+    default <T> T sendCommand(String command, ResponseHandler<T> handler) throws IOException {
+        return handler.handle(ByteBuffer.wrap(sendCommand(command).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Sends a command without waiting for its response. Implementations that cannot pipeline requests fall back to
+     * a synchronous round trip on the calling thread.
+     */
+    default CompletableFuture<String> sendCommandAsync(String command) {
+        try {
+            return CompletableFuture.completedFuture(sendCommand(command));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Number of connections opened so far. Whatever was set up on the other side over an earlier connection may be
+     * gone once it changes, e.g. because the server restarted.
+     */
+    default long getConnectionGeneration() {
+        return 0L;
+    }
+
+    @FunctionalInterface
+    interface ResponseHandler<T> {
 
+        T handle(ByteBuffer body) throws IOException;
+
+    }
+
+}
@@ -99,6 +99,10 @@ public class RCONClientImpl implements Closeable, RCONClient {
         }
 
         public void write(OutputStream out) throws IOException {
+            out.write(toByteBuffer().array());
+        }
+
+        public ByteBuffer toByteBuffer() {
             final byte[] body = this.body.getBytes(StandardCharsets.US_ASCII);
             final ByteBuffer buffer = ByteBuffer.allocate(body.length + 14);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -108,7 +112,8 @@ public class RCONClientImpl implements Closeable, RCONClient {
             buffer.put(body);
             buffer.put((byte) 0x00);
             buffer.put((byte) 0x00);
-            out.write(buffer.array());
+            buffer.flip();
+            return buffer;
         }
 
         @Override
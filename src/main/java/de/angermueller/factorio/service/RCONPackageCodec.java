@@ -0,0 +1,95 @@
+package de.angermueller.factorio.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation free encoding and decoding of RCON packages directly from and into (pooled) byte buffers. Package
+ * layout: int32 size, int32 id, int32 type, ASCII body, two zero bytes, all little endian.
+ */
+public final class RCONPackageCodec {
+
+    public static final int TYPE_RESPONSE_VALUE = 0;
+    public static final int TYPE_EXEC_COMMAND = 2;
+    public static final int TYPE_AUTH_RESPONSE = 2;
+    public static final int TYPE_AUTH = 3;
+
+    /** Bytes of a package that are not body: size, id, type and the two terminators */
+    public static final int OVERHEAD = 14;
+
+    private RCONPackageCodec() {
+    }
+
+    public static int encodedSize(CharSequence body) {
+        return body.length() + OVERHEAD;
+    }
+
+    /**
+     * Writes the package into the buffer at its current position. Non ASCII characters are replaced by '?' just like
+     * {@link String#getBytes(java.nio.charset.Charset)} with US-ASCII does.
+     */
+    public static void encode(int id, int type, CharSequence body, ByteBuffer target) {
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        target.putInt(body.length() + OVERHEAD - 4);
+        target.putInt(id);
+        target.putInt(type);
+        for (int i = 0; i < body.length(); i++) {
+            final char c = body.charAt(i);
+            target.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        target.put((byte) 0x00);
+        target.put((byte) 0x00);
+    }
+
+    /**
+     * Returns the total length (including the size field) of the package at the buffer position or -1 if the buffer
+     * does not contain the complete package yet.
+     */
+    public static int completePackageLength(ByteBuffer buffer) throws IOException {
+        if(buffer.remaining() < 4) {
+            return -1;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final int size = buffer.getInt(buffer.position());
+        if(size < OVERHEAD - 4) {
+            throw new IOException("Invalid package size " + size);
+        }
+        return buffer.remaining() < size + 4 ? -1 : size + 4;
+    }
+
+    public static int id(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 4);
+    }
+
+    public static int type(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 8);
+    }
+
+    public static int bodyLength(int packageLength) {
+        return packageLength - OVERHEAD;
+    }
+
+    /**
+     * Copies the body of the package at the buffer position into the target and advances the buffer past the
+     * package.
+     */
+    public static void readBody(ByteBuffer buffer, int packageLength, ByteBuffer target) throws IOException {
+        final int start = buffer.position();
+        final int bodyEnd = start + packageLength - 2;
+        if(buffer.get(bodyEnd) != 0x00) {
+            throw new IOException("Expecting zero body terminator");
+        }
+        if(buffer.get(bodyEnd + 1) != 0x00) {
+            throw new IOException("Expecting zero package terminator");
+        }
+        target.put(target.position(), buffer, start + 12, bodyLength(packageLength));
+        target.position(target.position() + bodyLength(packageLength));
+        buffer.position(start + packageLength);
+    }
+
+    public static void skip(ByteBuffer buffer, int packageLength) {
+        buffer.position(buffer.position() + packageLength);
+    }
+
+}
@@ -1,45 +1,238 @@
 package de.angermueller.factorio.service;
 
 import de.angermueller.factorio.domain.FactorioMetric;
-import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import de.angermueller.factorio.event.CollectorStateEvent;
+import jakarta.annotation.PreDestroy;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Collects from all registered servers concurrently on a bounded pool. A server whose previous collection is still
+ * running is skipped, so a slow or unreachable server neither delays the others nor piles up collections.
+ * <p>
+ * Every server is polled at its own pace: once per {@code sampleTicks} of game time at the measured UPS (within
+ * {@code minIntervalMillis} and {@code maxIntervalMillis}), every {@code pausedIntervalMillis} while the game is paused,
+ * and with exponential backoff and jitter while it is unreachable. Servers sampling in-game are drained every
+ * {@code drainIntervalMillis} instead. State changes are published as
+ * {@link CollectorStateEvent}s.
+ */
 @Slf4j
 @Service
 public class ScheduledCollectorImpl implements ScheduledCollector {
 
-    private final FactorioClient client;
-    private final FactorioTimeSeriesRepository timeSeriesRepository;
+    private static final double NOMINAL_UPS = 60.0;
 
-    public ScheduledCollectorImpl(FactorioClient client, FactorioTimeSeriesRepository timeSeriesRepository) {
-        this.client = client;
-        this.timeSeriesRepository = timeSeriesRepository;
+    private final List<ServerCollection> collections;
+    private final ExecutorService executor;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Setter
+    @Value("${collector.sample-ticks:60}")
+    private long sampleTicks = 60L;
+
+    @Setter
+    @Value("${collector.min-interval:250}")
+    private long minIntervalMillis = 250L;
+
+    @Setter
+    @Value("${collector.max-interval:10000}")
+    private long maxIntervalMillis = 10000L;
+
+    @Setter
+    @Value("${collector.paused-interval:5000}")
+    private long pausedIntervalMillis = 5000L;
+
+    /** Interval of collections from servers that sample in-game, see {@link FactorioClient#isBuffered()} */
+    @Setter
+    @Value("${collector.buffer.drain-interval:15000}")
+    private long drainIntervalMillis = 15000L;
+
+    @Setter
+    @Value("${collector.backoff.initial:1000}")
+    private long initialBackoffMillis = 1000L;
+
+    @Setter
+    @Value("${collector.backoff.max:60000}")
+    private long maxBackoffMillis = 60000L;
+
+    public ScheduledCollectorImpl(FactorioServerRegistry servers, ApplicationEventPublisher eventPublisher, @Value("${collector.threads:8}") int threads) {
+        assert threads > 0;
+        assert eventPublisher != null;
+        this.collections = servers.getServers().stream().map(ServerCollection::new).toList();
+        this.eventPublisher = eventPublisher;
+        final AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, collections.size())), runnable -> {
+            final Thread thread = new Thread(runnable, "collector-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts the collections that are due, the interval only bounds how precisely they are timed.
+     */
     @Override
-    @Scheduled(fixedRate = 1000L)
+    @Scheduled(fixedRateString = "${collector.scheduler-tick:100}")
     public void runCollection() {
-        try {
-            log.trace("Attempt to collect");
-            final FactorioClient.CollectionResult result = client.collect();
-            log.debug("Collected {}", result);
-            Map<String, Long> data = new HashMap<>();
-            for (Map.Entry<String, Long> entry : result.getItemsConsumed().entrySet()) {
-                data.put("in_" + entry.getKey(), entry.getValue());
+        final long now = System.nanoTime();
+        for (ServerCollection collection : collections) {
+            if(now - collection.nextAttemptNanos < 0L) {
+                continue;
+            }
+            if(!collection.running.compareAndSet(false, true)) {
+                log.debug("Skipping {}, previous collection still running", collection.server);
+                continue;
+            }
+            try {
+                executor.execute(collection);
+            } catch (RejectedExecutionException e) {
+                collection.running.set(false);
             }
-            for (Map.Entry<String, Long> entry : result.getItemsProduced().entrySet()) {
-                data.put("out_" + entry.getKey(), entry.getValue());
+        }
+    }
+
+    private long backoffMillis(int failures) {
+        final long delay = initialBackoffMillis << Math.min(failures - 1, 20);
+        final long capped = delay <= 0L ? maxBackoffMillis : Math.min(delay, maxBackoffMillis);
+        // Equal jitter, servers that went down together don't retry in lockstep
+        return capped / 2 + ThreadLocalRandom.current().nextLong(capped / 2 + 1);
+    }
+
+    private class ServerCollection implements Runnable {
+
+        private final FactorioServer server;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        // Written by the collection while running is set, read by the scheduler
+        private volatile long nextAttemptNanos = System.nanoTime();
+        private CollectorStateEvent.State state;
+        private int failures = 0;
+        private double ups = NOMINAL_UPS;
+        private long lastGameTick = -1L;
+        private long lastNanos;
+        private long lastStoredGameTick = -1L;
+        private long lastStoredSample = 0L;
+        private long scriptInstalls = 0L;
+
+        ServerCollection(FactorioServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            CollectorStateEvent.State newState;
+            long delayMillis;
+            try {
+                log.trace("Attempt to collect from {}", server);
+                final List<FactorioClient.CollectionResult> results = server.getClient().collect();
+                final long now = System.nanoTime();
+                log.debug("Collected {} from {}", results, server);
+                failures = 0;
+                if(results.size() == 1 && results.get(0).isPaused()) {
+                    newState = CollectorStateEvent.State.PAUSED;
+                    delayMillis = pausedIntervalMillis;
+                    lastGameTick = -1L;
+                } else {
+                    if(server.getClient().getScriptInstalls() != scriptInstalls) {
+                        // The game restarted or loaded a save, its sample numbers start over
+                        scriptInstalls = server.getClient().getScriptInstalls();
+                        lastStoredSample = 0L;
+                    }
+                    for (FactorioClient.CollectionResult result : results) {
+                        // Buffered samples may be sent again after a lost response, with the tick they had before
+                        if(result.getSample() > 0L && result.getSample() <= lastStoredSample && result.getGameTick() <= lastStoredGameTick) {
+                            continue;
+                        }
+                        if(result.getGameTick() < lastStoredGameTick) {
+                            log.info("Game tick of {} went back from {} to {}, an earlier save was loaded", server, lastStoredGameTick, result.getGameTick());
+                        }
+                        for (FactorioClient.SourceCounters counters : result.getSources()) {
+                            server.getRepository(counters.getSource()).store(toMetric(result.getGameTick(), counters));
+                        }
+                        lastStoredGameTick = result.getGameTick();
+                        lastStoredSample = result.getSample();
+                    }
+                    if(!results.isEmpty()) {
+                        final long gameTick = results.get(results.size() - 1).getGameTick();
+                        if(lastGameTick >= 0L && gameTick > lastGameTick && now > lastNanos) {
+                            final double measured = (gameTick - lastGameTick) * 1e9 / (now - lastNanos);
+                            ups = (ups + measured) / 2.0;
+                        }
+                        lastGameTick = gameTick;
+                        lastNanos = now;
+                    }
+                    newState = CollectorStateEvent.State.RUNNING;
+                    delayMillis = server.getClient().isBuffered()
+                            ? drainIntervalMillis
+                            : Math.max(minIntervalMillis, Math.min(maxIntervalMillis, Math.round(sampleTicks * 1000.0 / ups)));
+                }
+            } catch (IOException | RuntimeException e) {
+                failures++;
+                newState = CollectorStateEvent.State.UNREACHABLE;
+                delayMillis = backoffMillis(failures);
+                lastGameTick = -1L;
+                if(state != newState) {
+                    log.info("Unable to collect from {} because of {}, retrying in {} ms", server, e.toString(), delayMillis);
+                } else {
+                    log.debug("Unable to collect from {} ({} failures) because of {}, retrying in {} ms", server, failures, e.toString(), delayMillis);
+                }
+                if(e instanceof RuntimeException) {
+                    log.debug("Collection from {} failed", server, e);
+                }
+            }
+            nextAttemptNanos = System.nanoTime() + delayMillis * 1_000_000L;
+            final boolean changed = state != newState;
+            state = newState;
+            running.set(false);
+            if(changed) {
+                final CollectorStateEvent event = new CollectorStateEvent(ScheduledCollectorImpl.this, server.getName(), newState, ups, delayMillis, failures);
+                log.info("{}", event);
+                eventPublisher.publishEvent(event);
+            }
+        }
+
+    }
+
+    protected static FactorioMetric toMetric(long gameTick, FactorioClient.SourceCounters counters) {
+        final long[] consumed = counters.getItemsConsumed();
+        final long[] produced = counters.getItemsProduced();
+        // Items whose counters are both zero are not part of the statistics yet
+        int size = 0;
+        for (int i = 0; i < counters.getItemCount(); i++) {
+            if(consumed[i] != 0L || produced[i] != 0L) {
+                size++;
+            }
+        }
+        final int[] metricItemIds = new int[size];
+        final long[] metricConsumed = new long[size];
+        final long[] metricProduced = new long[size];
+        int j = 0;
+        for (int i = 0; i < counters.getItemCount(); i++) {
+            if(consumed[i] != 0L || produced[i] != 0L) {
+                metricItemIds[j] = counters.getItemIds()[i];
+                metricConsumed[j] = consumed[i];
+                metricProduced[j] = produced[i];
+                j++;
             }
-            timeSeriesRepository.store(new FactorioMetric(result.getGameTick(), data));
-        } catch (IOException e) {
-            log.debug("Unable to collect because of {}", e.toString());
         }
+        return new FactorioMetric(gameTick, metricItemIds, metricConsumed, metricProduced);
     }
 
 }
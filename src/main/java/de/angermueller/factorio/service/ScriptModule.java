@@ -0,0 +1,84 @@
+package de.angermueller.factorio.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Lua script installed into the game over RCON. Every occurrence of the module's name in the script is replaced by
+ * {@link #getQualifiedName()}, which includes a hash of the script, so changed scripts never call into stale
+ * versions. Installed modules register their hash in {@code factorio_buddy_modules}, which {@link #probeCommand(List)}
+ * checks. Like the functions it is not part of a save, so loading one uninstalls every module.
+ */
+public final class ScriptModule {
+
+    private static final String REGISTRY = "factorio_buddy_modules";
+
+    private final String name;
+    private final String hash;
+    private final String source;
+
+    private ScriptModule(String name, String script) {
+        assert name != null && name.matches("[a-z_]+");
+        this.name = name;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+            this.hash = HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.source = script.replace(name, getQualifiedName());
+    }
+
+    /**
+     * Loads the module from the class path resource {@code <name>.lua}.
+     */
+    public static ScriptModule load(String name) {
+        try(InputStream in = Objects.requireNonNull(ScriptModule.class.getClassLoader().getResourceAsStream(name + ".lua"), name + ".lua")) {
+            return new ScriptModule(name, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getQualifiedName() {
+        return name + "_" + hash;
+    }
+
+    /**
+     * Command defining the module's functions, the module is registered only if the script ran through.
+     */
+    public String installCommand() {
+        return "/sc " + source + "\n" + REGISTRY + " = " + REGISTRY + " or {} " + REGISTRY + "['" + name + "'] = '" + hash + "'";
+    }
+
+    /**
+     * Command printing one character per module, '1' if the module is installed in this version, '0' otherwise.
+     */
+    public static String probeCommand(List<ScriptModule> modules) {
+        return modules.stream()
+                .map(module -> "(m['" + module.name + "'] == '" + module.hash + "' and '1' or '0')")
+                .collect(Collectors.joining(" .. ", "/sc local m = " + REGISTRY + " or {} rcon.print(", ")"));
+    }
+
+    @Override
+    public String toString() {
+        return getQualifiedName();
+    }
+
+}
@@ -0,0 +1,74 @@
+package de.angermueller.factorio.service;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Flow statistics of a force to collect, written as {@code <force>/<statistic>}, e.g. {@code player/item} or
+ * {@code enemy/kill}.
+ */
+public record StatisticSource(String force, Statistic statistic) {
+
+    // Interpolated into the collection command as a Lua string
+    private static final Pattern FORCE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    public static final StatisticSource PLAYER_ITEMS = new StatisticSource("player", Statistic.ITEM);
+
+    public StatisticSource {
+        assert force != null && statistic != null;
+        if(!FORCE_NAME.matcher(force).matches()) {
+            throw new IllegalArgumentException("Unsupported force name '" + force + "'");
+        }
+    }
+
+    public static StatisticSource parse(String source) {
+        final int idx = source.indexOf('/');
+        if(idx == -1) {
+            throw new IllegalArgumentException("Expecting <force>/<statistic>: " + source);
+        }
+        return new StatisticSource(source.substring(0, idx).trim(), Statistic.valueOf(source.substring(idx + 1).trim().toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * Series of this source on a server whose item statistics of the player force go to the given series, e.g.
+     * {@code resources_enemy_kill}.
+     */
+    public String seriesName(String serverSeries) {
+        if(equals(PLAYER_ITEMS)) {
+            return serverSeries;
+        }
+        return serverSeries + "_" + force.replace('-', '_') + "_" + statistic.name().toLowerCase(Locale.ROOT);
+    }
+
+    String toLua() {
+        return "{\"" + force + "\",\"" + statistic.getProperty() + "\"}";
+    }
+
+    @Override
+    public String toString() {
+        return force + "/" + statistic.name().toLowerCase(Locale.ROOT);
+    }
+
+    public enum Statistic {
+        /** Items produced and consumed */
+        ITEM("item_production_statistics"),
+        /** Fluids produced and consumed */
+        FLUID("fluid_production_statistics"),
+        /** Entities killed by (input) and lost by (output) the force */
+        KILL("kill_count_statistics"),
+        /** Entities built (input) and mined or destroyed (output) */
+        BUILD("entity_build_count_statistics");
+
+        private final String property;
+
+        Statistic(String property) {
+            this.property = property;
+        }
+
+        /** Name of the LuaFlowStatistics property of LuaForce */
+        public String getProperty() {
+            return property;
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package de.angermueller.factorio.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte buffers bucketed by power of two capacities. Buffers handed out by {@link #acquire(int)} are cleared
+ * and must be given back with {@link #release(ByteBuffer)} once they are no longer referenced.
+ */
+public class ByteBufferPool {
+
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 30;
+
+    private final boolean direct;
+    private final int maxPooledPerBucket;
+    private final Queue<ByteBuffer>[] buckets;
+    private final AtomicInteger[] bucketSizes;
+
+    public ByteBufferPool(boolean direct) {
+        this(direct, 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(boolean direct, int maxPooledPerBucket) {
+        assert maxPooledPerBucket >= 0;
+        this.direct = direct;
+        this.maxPooledPerBucket = maxPooledPerBucket;
+        this.buckets = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+        this.bucketSizes = new AtomicInteger[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+            bucketSizes[i] = new AtomicInteger(0);
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public ByteBuffer acquire(int minCapacity) {
+        final int bucket = bucketFor(minCapacity);
+        final ByteBuffer buffer = buckets[bucket].poll();
+        if(buffer != null) {
+            bucketSizes[bucket].decrementAndGet();
+            return buffer.clear();
+        }
+        final int capacity = 1 << (bucket + MIN_SHIFT);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer with at least the given capacity containing the data of the given (write mode) buffer. The
+     * given buffer is released if it had to be replaced.
+     */
+    public ByteBuffer ensureCapacity(ByteBuffer buffer, int minCapacity) {
+        if(buffer.capacity() >= minCapacity) {
+            return buffer;
+        }
+        final ByteBuffer grown = acquire(minCapacity);
+        buffer.flip();
+        grown.put(buffer);
+        release(buffer);
+        return grown;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.isDirect() != direct || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        final int bucket = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if(bucket < 0 || bucket >= buckets.length) {
+            return;
+        }
+        if(bucketSizes[bucket].incrementAndGet() > maxPooledPerBucket) {
+            bucketSizes[bucket].decrementAndGet();
+            return;
+        }
+        buckets[bucket].add(buffer);
+    }
+
+    private static int bucketFor(int capacity) {
+        final int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        if(shift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Buffer too large: " + capacity);
+        }
+        return shift - MIN_SHIFT;
+    }
+
+}
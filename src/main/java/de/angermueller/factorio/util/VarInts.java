@@ -0,0 +1,58 @@
+package de.angermueller.factorio.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LEB128 style variable length encoding of unsigned longs (7 bits per byte, least significant group first) and the
+ * zig-zag mapping used for signed values, so small magnitudes of either sign take few bytes.
+ */
+public final class VarInts {
+
+    /** Maximum number of bytes a single encoded long takes */
+    public static final int MAX_LONG_BYTES = 10;
+
+    private VarInts() {
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buffer) {
+        long result = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length long");
+    }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        putVarLong(buffer, value & 0xFFFFFFFFL);
+    }
+
+    public static int getVarInt(ByteBuffer buffer) {
+        final long value = getVarLong(buffer);
+        if((value & ~0xFFFFFFFFL) != 0L) {
+            throw new IllegalArgumentException("Variable length int out of range");
+        }
+        return (int) value;
+    }
+
+    public static void putSignedVarLong(ByteBuffer buffer, long value) {
+        putVarLong(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    public static long getSignedVarLong(ByteBuffer buffer) {
+        final long value = getVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+}
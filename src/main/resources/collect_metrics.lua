@@ -1,29 +1,226 @@
-function collect_metrics()
+-- Counters sent with the last response per statistic source, used to only send the entries that changed since then.
+-- In compact mode names are sent once per source and referred to by their (zero based) position in the source's
+-- names list afterwards.
+-- Deliberately a plain global rather than part of global: like the functions it is gone after a save was loaded, so
+-- the module gets reinstalled and the client starts over with a full response. Kept in global, a loaded save would
+-- bring back a seq the client may still hold, along with counters that don't match what it has seen.
+collect_metrics_state = collect_metrics_state or { seq = 0, key = '', sources = {} }
+
+local EMPTY = {}
+
+local function register_name(state, name, new_names)
+    local index = state.index[name]
+    if index == nil then
+        index = #state.names
+        state.names[index + 1] = name
+        state.index[name] = index
+        new_names[#new_names + 1] = '"' .. name .. '"'
+    end
+    return index
+end
+
+local function append_object(parts, counts, last, full)
+    local separator = ''
+    for name, value in pairs(counts) do
+        if full or last[name] ~= value then
+            parts[#parts + 1] = separator .. '"' .. name .. '":' .. value
+            separator = ','
+            last[name] = value
+        end
+    end
+end
+
+local function append_positional(parts, counts, last, names)
+    local separator = ''
+    for _, name in ipairs(names) do
+        local value = counts[name] or 0
+        parts[#parts + 1] = separator .. value
+        separator = ','
+        last[name] = value
+    end
+end
+
+local function append_pairs(parts, counts, last, state, new_names)
+    local separator = ''
+    for name, value in pairs(counts) do
+        if last[name] ~= value then
+            parts[#parts + 1] = separator .. register_name(state, name, new_names) .. ',' .. value
+            separator = ','
+            last[name] = value
+        end
+    end
+end
+
+-- Flow statistics of a force, e.g. 'item_production_statistics'. Forces that don't exist (yet) have no counters.
+local function statistics_of(force_name, statistic)
+    local force = game.forces[force_name]
+    if force == nil then
+        return EMPTY, EMPTY
+    end
+    local statistics = force[statistic]
+    return statistics.input_counts, statistics.output_counts
+end
+
+local function append_source(parts, state, input_counts, output_counts, full, compact)
+    if not compact then
+        parts[#parts + 1] = '{"itemsConsumed":{'
+        append_object(parts, input_counts, state.input, full)
+        parts[#parts + 1] = '},"itemsProduced":{'
+        append_object(parts, output_counts, state.output, full)
+        parts[#parts + 1] = '}}'
+        return
+    end
+    local base = #state.names
+    local new_names = {}
+    local body = {}
+    if full then
+        for name in pairs(input_counts) do
+            register_name(state, name, new_names)
+        end
+        for name in pairs(output_counts) do
+            register_name(state, name, new_names)
+        end
+        body[1] = ',"in":['
+        append_positional(body, input_counts, state.input, state.names)
+        body[#body + 1] = '],"out":['
+        append_positional(body, output_counts, state.output, state.names)
+    else
+        body[1] = ',"din":['
+        append_pairs(body, input_counts, state.input, state, new_names)
+        body[#body + 1] = '],"dout":['
+        append_pairs(body, output_counts, state.output, state, new_names)
+    end
+    body[#body + 1] = ']}'
+    parts[#parts + 1] = '{"base":' .. base .. ',"names":[' .. table.concat(new_names, ',') .. ']'
+    parts[#parts + 1] = table.concat(body)
+end
+
+local function source_key(sources)
+    local key_parts = {}
+    for i, source in ipairs(sources) do
+        key_parts[i] = source[1] .. '/' .. source[2]
+    end
+    return table.concat(key_parts, ',')
+end
+
+-- Appends one sample with counts(i) returning the input and output counts of the i-th source. The sample is sent in
+-- full if since_seq does not match the last sample sent, as a delta to it otherwise.
+local function append_sample(parts, sources, counts, game_tick, since_seq, compact, sample)
+    local state = collect_metrics_state
+    local key = source_key(sources)
+    local full = since_seq == nil or since_seq ~= state.seq or state.compact ~= compact or state.key ~= key
+    if full then
+        state.sources = {}
+        state.compact = compact
+        state.key = key
+    end
+    state.seq = state.seq + 1
+    parts[#parts + 1] = '{"gameTick":' .. game_tick .. ',"seq":' .. state.seq .. ',"full":' .. tostring(full)
+    if sample ~= nil then
+        parts[#parts + 1] = ',"sample":' .. sample
+    end
+    parts[#parts + 1] = ',"sources":['
+    for i in ipairs(sources) do
+        local source_state = state.sources[i]
+        if source_state == nil then
+            source_state = { input = {}, output = {}, index = {}, names = {} }
+            state.sources[i] = source_state
+        end
+        if i > 1 then
+            parts[#parts + 1] = ','
+        end
+        local input_counts, output_counts = counts(i)
+        append_source(parts, source_state, input_counts, output_counts, full, compact)
+    end
+    parts[#parts + 1] = ']}'
+end
+
+-- Collects every source, a list of {force name, statistic} pairs, into one response with one entry per source in
+-- the same order. Returns all counters if since_seq is nil or does not match the last response, the changed ones
+-- otherwise.
+function collect_metrics(since_seq, compact, sources)
     if game.tick_paused then
         return '{"paused": true}'
     end
-    local output_data = game.forces["player"].item_production_statistics.output_counts
-    local input_data = game.forces["player"].item_production_statistics.input_counts
-    local gameTick = game.ticks_played
-    inputJson = '{'
-    for key, value in pairs(input_data) do
-        if #inputJson > 1 then
-            inputJson = inputJson .. ','
-        end
-        inputJson = inputJson .. '"' .. key .. '": ' .. value
-    end
-    inputJson = inputJson .. '}'
-    outputJson = '{'
-    for key, value in pairs(output_data) do
-        if #outputJson > 1 then
-            outputJson = outputJson .. ','
-        end
-        outputJson = outputJson .. '"' .. key .. '": ' .. value
-    end
-    outputJson = outputJson .. '}'
-    return '{' ..
-                '"gameTick":' .. gameTick .. ',' ..
-                '"itemsConsumed":' .. inputJson .. ',' ..
-                '"itemsProduced":' .. outputJson ..
-            '}'
-end
\ No newline at end of file
+    local parts = {}
+    append_sample(parts, sources, function(i)
+        return statistics_of(sources[i][1], sources[i][2])
+    end, game.ticks_played, since_seq, compact, nil)
+    return table.concat(parts)
+end
+
+local function copy(counts)
+    local result = {}
+    for name, value in pairs(counts) do
+        result[name] = value
+    end
+    return result
+end
+
+local function take_sample()
+    local buffer = global.factorio_buddy_samples
+    local counts = {}
+    for i, source in ipairs(buffer.sources) do
+        local input_counts, output_counts = statistics_of(source[1], source[2])
+        counts[i] = { copy(input_counts), copy(output_counts) }
+    end
+    buffer.samples[buffer.next] = { tick = game.ticks_played, counts = counts }
+    buffer.next = buffer.next + 1
+    while buffer.next - buffer.first > buffer.capacity do
+        buffer.samples[buffer.first] = nil
+        buffer.first = buffer.first + 1
+    end
+end
+
+-- Samples the sources every interval ticks into a ring buffer of the given capacity in global, so samples are
+-- tick-exact and survive until drained. Handlers are not part of a save, so this has to be called again after a load.
+function collect_metrics_start(interval, capacity, sources)
+    local buffer = global.factorio_buddy_samples
+    if buffer == nil or source_key(buffer.sources) ~= source_key(sources) then
+        buffer = { first = 1, next = 1, samples = {} }
+        global.factorio_buddy_samples = buffer
+    end
+    if buffer.interval ~= nil and buffer.interval ~= interval then
+        script.on_nth_tick(buffer.interval, nil)
+    end
+    buffer.interval = interval
+    buffer.capacity = capacity
+    buffer.sources = sources
+    buffer.last_start = game.ticks_played
+    script.on_nth_tick(interval, function()
+        buffer.last_tick = game.ticks_played
+        take_sample()
+    end)
+end
+
+-- Returns the buffered samples after the given sample number in one response and forgets the ones up to it, the
+-- caller passes the number of the last sample it applied. Consecutive samples are deltas to each other, the first
+-- one to the last sample sent before if since_seq matches it. "stale" tells the caller to start sampling again.
+function collect_metrics_drain(since_seq, compact, after_sample)
+    local buffer = global.factorio_buddy_samples
+    if buffer == nil then
+        return '{"stale":true,"samples":[]}'
+    end
+    if after_sample ~= nil then
+        while buffer.first <= after_sample and buffer.first < buffer.next do
+            buffer.samples[buffer.first] = nil
+            buffer.first = buffer.first + 1
+        end
+    end
+    local last_tick = buffer.last_tick or buffer.last_start
+    local stale = not game.tick_paused and game.ticks_played - last_tick > 2 * buffer.interval
+    local parts = { '{"paused":' .. tostring(game.tick_paused) .. ',"stale":' .. tostring(stale) .. ',"samples":[' }
+    local since = since_seq
+    for n = buffer.first, buffer.next - 1 do
+        local sample = buffer.samples[n]
+        if n > buffer.first then
+            parts[#parts + 1] = ','
+        end
+        append_sample(parts, buffer.sources, function(i)
+            return sample.counts[i][1], sample.counts[i][2]
+        end, sample.tick, since, compact, n)
+        since = collect_metrics_state.seq
+    end
+    parts[#parts + 1] = ']}'
+    return table.concat(parts)
+end
@@ -0,0 +1,386 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.Application;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository.Resolution;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs millions of ticks through the incremental aggregation and the rollup chain and compares every stored bucket
+ * with the plain loop over the raw samples of each resolution, also across restarts.
+ */
+class BucketRollupTest {
+
+    private static final List<Application.BasicResolution> RESOLUTIONS = List.of(
+            Application.RESOLUTION_PER_SECOND,
+            Application.RESOLUTION_PER_TEN_SECONDS,
+            Application.RESOLUTION_PER_MINUTE,
+            Application.RESOLUTION_PER_TEN_MINUTES
+    );
+    private static final long TICKS = 20_000_000L;
+    private static final int ITEMS = 12;
+    private static final int[] ITEM_IDS = new int[ITEMS];
+    /** Ids of the items in every sample */
+    private static final int[] ALWAYS_PRESENT = new int[4];
+
+    static {
+        for (int i = 0; i < ITEMS; i++) {
+            ITEM_IDS[i] = ItemRegistry.idOf("rollup-test-item-" + i);
+        }
+        System.arraycopy(ITEM_IDS, 0, ALWAYS_PRESENT, 0, ALWAYS_PRESENT.length);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"max", "min", "sum", "mean", "last", "rate_per_second", "rate_per_minute"})
+    void rollupMatchesPerResolutionAggregation(String aggregator) throws SQLException, IOException {
+        final List<FactorioMetric> samples = samples(new Random(42L));
+        final RecordingRepository repository = repository(new HashMap<>(), aggregator, null);
+        for (FactorioMetric sample : samples) {
+            repository.store(sample);
+        }
+        for (Application.BasicResolution resolution : RESOLUTIONS) {
+            final List<Map<Integer, List<Long>>> expected = baseline(samples, resolution.ticksPerUnit(), aggregator);
+            final List<FactorioMetric> stored = repository.stored.get(resolution);
+            assertBucketCount(resolution, expected, stored);
+            for (int i = 0; i < stored.size(); i++) {
+                assertBucket(resolution, i, expected.get(i), stored.get(i));
+            }
+        }
+    }
+
+    /**
+     * The counter keeps growing while nothing is collected, the increase over the gap must not end up in the bucket
+     * after it.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"rate_per_second", "rate_per_minute"})
+    void rateAfterCollectionGapDoesNotSpike(String aggregator) throws SQLException, IOException {
+        final long perTick = 10L;
+        final long perTicks = aggregator.equals("rate_per_second") ? 60L : 3600L;
+        final RecordingRepository repository = repository(new HashMap<>(), aggregator, null);
+        for (long tick = 60L; tick <= 4_320_000L; tick += 60L) {
+            // Nothing collected for 5 hours and 20 minutes, on bucket boundaries of every resolution
+            if(tick <= 576_000L || tick > 1_728_000L) {
+                repository.store(new FactorioMetric.Builder().set(ITEM_IDS[0], perTick * tick, 0L).build(tick));
+            }
+        }
+        for (Application.BasicResolution resolution : RESOLUTIONS) {
+            final List<FactorioMetric> stored = repository.stored.get(resolution);
+            assertTrue(stored.size() > 10, resolution + ": too few buckets to mean anything");
+            for (int i = 0; i < stored.size(); i++) {
+                final FactorioMetric metric = stored.get(i);
+                final long rate = metric.getConsumed(0);
+                if(i > 0 && metric.getGameTick() - stored.get(i - 1).getGameTick() == resolution.ticksPerUnit()) {
+                    assertEquals(perTick * perTicks, rate, resolution + " bucket at tick " + metric.getGameTick());
+                } else {
+                    // The first bucket and the one after the gap only know the increase within themselves
+                    assertTrue(rate >= 0L && rate < perTick * perTicks, resolution + " bucket at tick " + metric.getGameTick() + " has a rate of " + rate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restarts twice after a clean shutdown, the checkpoint continues every open bucket exactly.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"max", "min", "sum", "mean", "last", "rate_per_second", "rate_per_minute"})
+    void restartFromCheckpointMatchesUninterruptedRollup(String aggregator, @TempDir Path directory) throws SQLException, IOException {
+        final List<FactorioMetric> samples = samples(new Random(7L));
+        final Map<Resolution, List<FactorioMetric>> stored = new HashMap<>();
+        final Path checkpoint = directory.resolve("checkpoint");
+        RecordingRepository repository = null;
+        for (int part = 0; part < 3; part++) {
+            repository = repository(stored, aggregator, checkpoint);
+            for (FactorioMetric sample : samples.subList(part * samples.size() / 3, (part + 1) * samples.size() / 3)) {
+                repository.store(sample);
+            }
+            repository.stopWriter();
+        }
+        for (Application.BasicResolution resolution : RESOLUTIONS) {
+            final List<Map<Integer, List<Long>>> expected = baseline(samples, resolution.ticksPerUnit(), aggregator);
+            assertBucketCount(resolution, expected, stored.get(resolution));
+            for (int i = 0; i < stored.get(resolution).size(); i++) {
+                assertBucket(resolution, i, expected.get(i), stored.get(resolution).get(i));
+            }
+        }
+    }
+
+    /**
+     * Crashes with an outdated or without a checkpoint. The samples of the finest open bucket are lost. Idempotent
+     * aggregators rebuild every other open bucket from the stored finer ones, the others lose the part of the open
+     * buckets before the crash, but must not let it spill into the following buckets.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"max", "min", "sum", "mean", "last", "rate_per_second", "rate_per_minute"})
+    void restartAfterCrashOnlyAffectsOpenBuckets(String aggregator, @TempDir Path directory) throws SQLException, IOException {
+        final List<FactorioMetric> samples = samples(new Random(11L));
+        for (boolean keepCheckpoint : new boolean[]{true, false}) {
+            final Map<Resolution, List<FactorioMetric>> stored = new HashMap<>();
+            final Path checkpoint = directory.resolve("checkpoint-" + keepCheckpoint);
+            final RecordingRepository first = repository(stored, aggregator, checkpoint);
+            for (FactorioMetric sample : samples.subList(0, samples.size() / 3)) {
+                first.store(sample);
+            }
+            final Map<Resolution, Long> closedAtCheckpoint = new HashMap<>();
+            for (Application.BasicResolution resolution : RESOLUTIONS) {
+                closedAtCheckpoint.put(resolution, first.getLastClosedTick(resolution));
+            }
+            first.stopWriter();
+            final RecordingRepository crashed = repository(stored, aggregator, checkpoint);
+            final List<FactorioMetric> before = samples.subList(samples.size() / 3, 2 * samples.size() / 3);
+            for (FactorioMetric sample : before) {
+                crashed.store(sample);
+            }
+            final Map<Resolution, Long> closedAtCrash = new HashMap<>();
+            // Resolutions that start their open bucket from scratch, because the checkpoint is gone or outdated
+            final Set<Resolution> restartedEmpty = new HashSet<>();
+            for (Application.BasicResolution resolution : RESOLUTIONS) {
+                closedAtCrash.put(resolution, crashed.getLastClosedTick(resolution));
+                final List<FactorioMetric> buckets = stored.get(resolution);
+                if(!keepCheckpoint || buckets.get(buckets.size() - 1).getGameTick() > closedAtCheckpoint.get(resolution)) {
+                    restartedEmpty.add(resolution);
+                }
+            }
+            if(!keepCheckpoint) {
+                Files.delete(checkpoint);
+            }
+            final RecordingRepository restarted = repository(stored, aggregator, checkpoint);
+            final List<FactorioMetric> after = samples.subList(2 * samples.size() / 3, samples.size());
+            for (FactorioMetric sample : after) {
+                restarted.store(sample);
+            }
+            // The samples of the finest open bucket were never stored anywhere
+            final long crashTick = before.get(before.size() - 1).getGameTick();
+            final long finestClosed = closedAtCrash.get(RESOLUTIONS.get(0));
+            final List<FactorioMetric> kept = samples.stream().filter(sample -> sample.getGameTick() <= finestClosed || sample.getGameTick() > crashTick).toList();
+            final boolean idempotent = Aggregators.of(aggregator).isIdempotent();
+            for (Application.BasicResolution resolution : RESOLUTIONS) {
+                final String context = resolution + (keepCheckpoint ? " with checkpoint" : " without checkpoint");
+                final List<Map<Integer, List<Long>>> expected = baseline(kept, resolution.ticksPerUnit(), aggregator);
+                final List<FactorioMetric> buckets = stored.get(resolution);
+                assertBucketCount(resolution, expected, buckets);
+                boolean open = true;
+                for (int i = 0; i < buckets.size(); i++) {
+                    final FactorioMetric metric = buckets.get(i);
+                    if(idempotent || metric.getGameTick() <= closedAtCrash.get(resolution)) {
+                        assertBucket(resolution, i, expected.get(i), metric);
+                    } else if(open) {
+                        open = false;
+                        assertEquals(expected.get(i).get(-1).get(0), metric.getGameTick(), context + " bucket " + i);
+                        if(restartedEmpty.contains(resolution)) {
+                            // Nothing from before the crash, not even the carried values
+                            final long ticksPerUnit = resolution.ticksPerUnit();
+                            final List<FactorioMetric> bucket = after.stream().filter(sample -> sample.getGameTick() > metric.getGameTick() - ticksPerUnit && sample.getGameTick() <= metric.getGameTick()).toList();
+                            assertEquals(aggregate(metric.getGameTick(), bucket, new HashMap<>(), ticksPerUnit, aggregator), toMap(metric), context + " bucket " + i);
+                        } else if(aggregator.equals("sum")) {
+                            // Part of it is lost, a sum only ever gets smaller
+                            for (int j = 0; j < metric.size(); j++) {
+                                final List<Long> values = expected.get(i).get(metric.getItemId(j));
+                                assertTrue(metric.getConsumed(j) <= values.get(0) && metric.getProduced(j) <= values.get(1), context + " bucket " + i);
+                            }
+                        }
+                    } else if(aggregator.startsWith("rate_")) {
+                        // Items that skipped the open bucket have no carried value, the others must have the right one
+                        final Map<Integer, List<Long>> actual = toMap(metric);
+                        for (int itemId : ALWAYS_PRESENT) {
+                            assertEquals(expected.get(i).get(itemId), actual.get(itemId), context + " bucket " + i + " at tick " + metric.getGameTick());
+                        }
+                    } else {
+                        assertBucket(resolution, i, expected.get(i), metric);
+                    }
+                }
+            }
+        }
+    }
+
+    private static RecordingRepository repository(Map<Resolution, List<FactorioMetric>> stored, String aggregator, Path checkpoint) throws SQLException, IOException {
+        final RecordingRepository repository = new RecordingRepository(stored);
+        repository.setWriteBehind(false);
+        repository.setDefaultAggregator(Aggregators.of(aggregator));
+        if(checkpoint != null) {
+            repository.setCheckpointFile(checkpoint);
+            repository.setCheckpointIntervalMillis(60L * 60L * 1000L);
+        }
+        repository.init();
+        return repository;
+    }
+
+    private static void assertBucketCount(Resolution resolution, List<Map<Integer, List<Long>>> expected, List<FactorioMetric> stored) {
+        // Coarser buckets close with the next finer one, so the latest one may still be open
+        assertTrue(stored.size() == expected.size() || stored.size() == expected.size() - 1,
+                resolution + ": " + stored.size() + " buckets stored, " + expected.size() + " expected");
+        assertTrue(stored.size() > 10, resolution + ": too few buckets to mean anything");
+    }
+
+    private static void assertBucket(Resolution resolution, int i, Map<Integer, List<Long>> expected, FactorioMetric metric) {
+        assertEquals(expected.get(-1).get(0), metric.getGameTick(), resolution + " bucket " + i);
+        assertEquals(expected, toMap(metric), resolution + " bucket " + i + " at tick " + metric.getGameTick());
+    }
+
+    /**
+     * Samples at irregular intervals, with pauses of up to an hour and samples right on bucket boundaries. Items
+     * come and go, their counters grow like the statistics of a running game.
+     */
+    private static List<FactorioMetric> samples(Random random) {
+        final int[] itemIds = ITEM_IDS;
+        final long[] consumed = new long[ITEMS];
+        final long[] produced = new long[ITEMS];
+        final List<FactorioMetric> samples = new ArrayList<>();
+        long tick = 0L;
+        while (true) {
+            final int kind = random.nextInt(1000);
+            if(kind == 0) {
+                tick += 1 + random.nextInt(60 * 60 * 60);
+            } else if(kind < 50) {
+                tick = (tick / 3600 + 1) * 3600;
+            } else {
+                tick += 1 + random.nextInt(120);
+            }
+            if(tick > TICKS) {
+                return samples;
+            }
+            final FactorioMetric.Builder builder = new FactorioMetric.Builder();
+            for (int i = 0; i < ITEMS; i++) {
+                consumed[i] += random.nextInt(1000);
+                produced[i] += random.nextInt(1000);
+                // The first items are always there, the others disappear now and then
+                if(i < ALWAYS_PRESENT.length || random.nextInt(10) != 0) {
+                    builder.set(itemIds[i], consumed[i], produced[i]);
+                }
+            }
+            samples.add(builder.build(tick));
+        }
+    }
+
+    /**
+     * Buckets of a single resolution straight from the samples: item id to consumed and produced, the bucket's tick
+     * under the key -1.
+     */
+    private static List<Map<Integer, List<Long>>> baseline(List<FactorioMetric> samples, long ticksPerUnit, String aggregator) {
+        final List<Map<Integer, List<Long>>> buckets = new ArrayList<>();
+        final Map<Long, long[]> previous = new HashMap<>();
+        List<FactorioMetric> bucket = new ArrayList<>();
+        long lastStoredTick = 0L;
+        for (FactorioMetric sample : samples) {
+            while (sample.getGameTick() - lastStoredTick > ticksPerUnit) {
+                final long nextTick = lastStoredTick + ticksPerUnit;
+                if(!bucket.isEmpty()) {
+                    buckets.add(aggregate(nextTick, bucket, previous, ticksPerUnit, aggregator));
+                    bucket = new ArrayList<>();
+                }
+                lastStoredTick = nextTick;
+            }
+            bucket.add(sample);
+        }
+        return buckets;
+    }
+
+    private static Map<Integer, List<Long>> aggregate(long tick, List<FactorioMetric> bucket, Map<Long, long[]> previous, long ticksPerUnit, String aggregator) {
+        // Values per column, 2 * item id for consumed and 2 * item id + 1 for produced
+        final Map<Long, List<Long>> columns = new LinkedHashMap<>();
+        for (FactorioMetric sample : bucket) {
+            for (int i = 0; i < sample.size(); i++) {
+                columns.computeIfAbsent(2L * sample.getItemId(i), ignored -> new ArrayList<>()).add(sample.getConsumed(i));
+                columns.computeIfAbsent(2L * sample.getItemId(i) + 1, ignored -> new ArrayList<>()).add(sample.getProduced(i));
+            }
+        }
+        final Map<Integer, List<Long>> result = new HashMap<>();
+        result.put(-1, List.of(tick));
+        for (Map.Entry<Long, List<Long>> column : columns.entrySet()) {
+            final List<Long> values = column.getValue();
+            final long last = values.get(values.size() - 1);
+            // Tick of the bucket before and the counter's last value in it
+            final long[] carried = previous.get(column.getKey());
+            final long start = carried != null && carried[0] == tick - ticksPerUnit ? carried[1] : values.get(0);
+            final long value = switch (aggregator) {
+                case "max" -> Collections.max(values);
+                case "min" -> Collections.min(values);
+                case "sum" -> values.stream().mapToLong(Long::longValue).sum();
+                case "mean" -> values.stream().mapToLong(Long::longValue).sum() / values.size();
+                case "last" -> last;
+                case "rate_per_second" -> (last - start) * 60L / ticksPerUnit;
+                case "rate_per_minute" -> (last - start) * 3600L / ticksPerUnit;
+                default -> throw new IllegalArgumentException(aggregator);
+            };
+            previous.put(column.getKey(), new long[]{tick, last});
+            final int itemId = (int) (column.getKey() / 2);
+            result.computeIfAbsent(itemId, ignored -> new ArrayList<>(List.of(0L, 0L))).set((int) (column.getKey() % 2), value);
+        }
+        return result;
+    }
+
+    private static Map<Integer, List<Long>> toMap(FactorioMetric metric) {
+        final Map<Integer, List<Long>> result = new HashMap<>();
+        result.put(-1, List.of(metric.getGameTick()));
+        for (int i = 0; i < metric.size(); i++) {
+            result.put(metric.getItemId(i), List.of(metric.getConsumed(i), metric.getProduced(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the stored buckets in memory, in a map that outlives the repository to restart on.
+     */
+    private static class RecordingRepository extends SQLFactorioTimeSeriesRepositoryImpl {
+
+        private final Map<Resolution, List<FactorioMetric>> stored;
+
+        RecordingRepository(Map<Resolution, List<FactorioMetric>> stored) {
+            super("rollup_test", null);
+            this.stored = stored;
+        }
+
+        @Override
+        public Set<? extends Resolution> getSupportedResolutions() {
+            return new HashSet<>(RESOLUTIONS);
+        }
+
+        @Override
+        protected void ensureTable(Resolution resolution) {
+            stored.putIfAbsent(resolution, new ArrayList<>());
+        }
+
+        @Override
+        protected void doStoreValue(Resolution resolution, FactorioMetric metric) {
+            stored.get(resolution).add(metric);
+        }
+
+        @Override
+        protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResult) {
+            final List<FactorioMetric> result = new ArrayList<>();
+            final List<FactorioMetric> values = stored.get(resolution);
+            for (int i = values.size() - 1; i >= 0 && result.size() < maxResult; i--) {
+                final long gameTick = values.get(i).getGameTick();
+                if(gameTick > afterTick && gameTick <= untilTick) {
+                    result.add(values.get(i));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        protected Long retrieveLastTick(Resolution resolution) {
+            final List<FactorioMetric> values = stored.get(resolution);
+            return values.isEmpty() ? null : values.get(values.size() - 1).getGameTick();
+        }
+
+        @Override
+        protected void dropValuesBefore(Resolution resolution, long gameTick) {
+        }
+
+    }
+
+}
@@ -0,0 +1,203 @@
+package de.angermueller.factorio.repository;
+
+import de.angermueller.factorio.Application;
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.repository.SQLFactorioTimeSeriesRepositoryImpl.PendingValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientConnectionException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes through the write-behind queue into storage that fails for some values.
+ */
+class WriteBehindTest {
+
+    private static final Application.BasicResolution RESOLUTION = Application.RESOLUTION_PER_SECOND;
+    private static final long TIMEOUT_MILLIS = 10000L;
+    private static final int ITEM_ID = ItemRegistry.idOf("write-behind-test-item");
+
+    @Test
+    void valueThatAlwaysFailsIsQuarantined() throws Exception {
+        // Rejected like a constraint violation every time, and with it every batch it is part of
+        final FailingRepository repository = new FailingRepository(values -> {
+            for (PendingValue value : values) {
+                if(value.metric().getGameTick() == 300L) {
+                    throw new SQLIntegrityConstraintViolationException("Duplicate key");
+                }
+            }
+        });
+        repository.init();
+        try {
+            for (long tick = 60L; tick <= 600L; tick += 60L) {
+                repository.storeValue(RESOLUTION, metric(tick));
+            }
+            for (long tick = 660L; tick <= 1200L; tick += 60L) {
+                repository.storeValue(RESOLUTION, metric(tick));
+            }
+            awaitFlushed(repository);
+        } finally {
+            repository.stopWriter();
+        }
+        final List<Long> expected = new ArrayList<>();
+        for (long tick = 60L; tick <= 1200L; tick += 60L) {
+            if(tick != 300L) {
+                expected.add(tick);
+            }
+        }
+        assertEquals(expected, repository.storedTicks());
+        assertEquals(1L, repository.getQuarantinedValues());
+        assertEquals(0L, repository.getDroppedValues());
+        // Not retried with backoff, the writer moved on right away
+        assertEquals(0, repository.transientFailures.get());
+    }
+
+    @Test
+    void transientFailuresAreRetriedAndQuarantinedAfterTheLastAttempt() throws Exception {
+        final FailingRepository repository = new FailingRepository(values -> {
+            for (PendingValue value : values) {
+                if(value.metric().getGameTick() == 120L) {
+                    throw new SQLTransientConnectionException("Connection lost");
+                }
+            }
+        });
+        repository.setWriteAttempts(3);
+        // Both values in one batch, which fails as a whole
+        repository.setFlushSize(2);
+        repository.setFlushLatencyMillis(1000L);
+        repository.init();
+        try {
+            repository.storeValue(RESOLUTION, metric(60L));
+            repository.storeValue(RESOLUTION, metric(120L));
+            awaitFlushed(repository);
+            repository.storeValue(RESOLUTION, metric(180L));
+            awaitFlushed(repository);
+        } finally {
+            repository.stopWriter();
+        }
+        assertEquals(List.of(180L), repository.storedTicks());
+        assertEquals(2L, repository.getQuarantinedValues());
+        assertEquals(3, repository.transientFailures.get());
+    }
+
+    @Test
+    void transientFailureThatGoesAwayLosesNothing() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        final FailingRepository repository = new FailingRepository(values -> {
+            if(failures.incrementAndGet() <= 2) {
+                throw new IOException("No space left on device");
+            }
+        });
+        repository.init();
+        try {
+            repository.storeValue(RESOLUTION, metric(60L));
+            repository.storeValue(RESOLUTION, metric(120L));
+            awaitFlushed(repository);
+        } finally {
+            repository.stopWriter();
+        }
+        assertEquals(List.of(60L, 120L), repository.storedTicks());
+        assertEquals(0L, repository.getQuarantinedValues());
+        assertEquals(2, repository.transientFailures.get());
+    }
+
+    private static FactorioMetric metric(long gameTick) {
+        return new FactorioMetric.Builder().set(ITEM_ID, gameTick, gameTick).build(gameTick);
+    }
+
+    /**
+     * Waits until nothing is queued or being written anymore.
+     */
+    private static void awaitFlushed(FailingRepository repository) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!repository.retrieve(RESOLUTION, null, null, Integer.MAX_VALUE).equals(repository.stored)) {
+            assertTrue(System.currentTimeMillis() < end, "Values still not written");
+            Thread.sleep(10L);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Storage {
+
+        void store(List<PendingValue> values) throws SQLException, IOException;
+
+    }
+
+    /**
+     * Keeps the written values in memory, after the given storage had a chance to fail.
+     */
+    private static class FailingRepository extends SQLFactorioTimeSeriesRepositoryImpl {
+
+        private final Storage storage;
+        /** Latest first, like they are retrieved */
+        private final List<FactorioMetric> stored = new CopyOnWriteArrayList<>();
+        private final AtomicInteger transientFailures = new AtomicInteger();
+
+        FailingRepository(Storage storage) {
+            super("write_behind_test", null);
+            this.storage = storage;
+            setFlushLatencyMillis(10L);
+            setWriteRetryInitialMillis(10L);
+            setWriteRetryMaxMillis(10L);
+        }
+
+        List<Long> storedTicks() {
+            final List<Long> ticks = new ArrayList<>();
+            for (FactorioMetric metric : stored) {
+                ticks.add(0, metric.getGameTick());
+            }
+            return ticks;
+        }
+
+        @Override
+        public Set<? extends Resolution> getSupportedResolutions() {
+            return Set.of(RESOLUTION);
+        }
+
+        @Override
+        protected void ensureTable(Resolution resolution) {
+        }
+
+        @Override
+        protected void doStoreValue(Resolution resolution, FactorioMetric metric) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void doStoreValues(List<PendingValue> values) throws SQLException, IOException {
+            try {
+                storage.store(values);
+            } catch (SQLTransientConnectionException | IOException e) {
+                transientFailures.incrementAndGet();
+                throw e;
+            }
+            for (PendingValue value : values) {
+                stored.add(0, value.metric());
+            }
+        }
+
+        @Override
+        protected List<FactorioMetric> retrieveValues(Resolution resolution, long afterTick, long untilTick, long maxResult) {
+            return new ArrayList<>(stored);
+        }
+
+        @Override
+        protected Long retrieveLastTick(Resolution resolution) {
+            return null;
+        }
+
+        @Override
+        protected void dropValuesBefore(Resolution resolution, long gameTick) {
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+package de.angermueller.factorio.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the client against a fake server that splits long responses into packages, with and without mirroring the
+ * empty package that ends them.
+ */
+class PipelinedRCONClientTest {
+
+    private static final String PASSWORD = "secret";
+    private static final long TIMEOUT_MILLIS = 10000L;
+    private static final int FRAGMENT_SIZE = 4096;
+    private static final String LARGE_RESPONSE = "0123456789".repeat(1500);
+
+    @Test
+    void responsesOfSeveralPackagesAreReassembled() throws IOException {
+        try (FakeServer server = new FakeServer(true);
+             PipelinedRCONClient client = new PipelinedRCONClient("localhost", server.getPort(), PASSWORD, TIMEOUT_MILLIS, true, false)) {
+            assertEquals("pong", client.sendCommand("ping"));
+            assertEquals(LARGE_RESPONSE, client.sendCommand("large"));
+            assertEquals(LARGE_RESPONSE, client.sendCommandAsync("large").join());
+            assertEquals("pong", client.sendCommand("ping"));
+        }
+    }
+
+    @Test
+    void serverThatDoesntMirrorFallsBackToSinglePackages() throws IOException {
+        try (FakeServer server = new FakeServer(false);
+             PipelinedRCONClient client = new PipelinedRCONClient("localhost", server.getPort(), PASSWORD, TIMEOUT_MILLIS, true, false)) {
+            final long start = System.currentTimeMillis();
+            assertEquals("pong", client.sendCommand("ping"));
+            assertEquals(LARGE_RESPONSE.substring(0, FRAGMENT_SIZE), client.sendCommand("large"));
+            assertEquals("pong", client.sendCommand("ping"));
+            // Only the probe waited, none of the commands until they timed out
+            assertTrue(System.currentTimeMillis() - start < TIMEOUT_MILLIS / 2, "Took " + (System.currentTimeMillis() - start) + " ms");
+            assertEquals(1, server.emptyPackages.get());
+        }
+    }
+
+    @Test
+    void singlePackagesWithoutProbingWhenDisabled() throws IOException {
+        try (FakeServer server = new FakeServer(true);
+             PipelinedRCONClient client = new PipelinedRCONClient("localhost", server.getPort(), PASSWORD, TIMEOUT_MILLIS, false, false)) {
+            assertEquals("pong", client.sendCommand("ping"));
+            assertEquals(LARGE_RESPONSE.substring(0, FRAGMENT_SIZE), client.sendCommand("large"));
+            assertEquals(0, server.emptyPackages.get());
+        }
+    }
+
+    /**
+     * Answers "ping" with "pong" and "large" with a response of several packages, one connection at a time.
+     */
+    private static class FakeServer implements Closeable {
+
+        private final boolean mirrorEmptyPackages;
+        private final ServerSocket serverSocket;
+        private final AtomicInteger emptyPackages = new AtomicInteger();
+
+        FakeServer(boolean mirrorEmptyPackages) throws IOException {
+            this.mirrorEmptyPackages = mirrorEmptyPackages;
+            this.serverSocket = new ServerSocket(0);
+            final Thread thread = new Thread(this::run, "fake-rcon-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())), socket.getOutputStream());
+                } catch (EOFException | SocketException e) {
+                    // Client or server closed
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void serve(DataInputStream in, OutputStream out) throws IOException {
+            while (true) {
+                final byte[] header = new byte[4];
+                in.readFully(header);
+                final byte[] content = new byte[ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt()];
+                in.readFully(content);
+                final ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+                final int id = buffer.getInt();
+                final int type = buffer.getInt();
+                final String body = new String(content, 8, content.length - 10, StandardCharsets.US_ASCII);
+                if(type == RCONPackageCodec.TYPE_AUTH) {
+                    write(out, id, RCONPackageCodec.TYPE_RESPONSE_VALUE, "");
+                    write(out, body.equals(PASSWORD) ? id : -1, RCONPackageCodec.TYPE_AUTH_RESPONSE, "");
+                } else if(type == RCONPackageCodec.TYPE_EXEC_COMMAND) {
+                    final String response = body.equals("large") ? LARGE_RESPONSE : "pong";
+                    for (int offset = 0; offset < response.length(); offset += FRAGMENT_SIZE) {
+                        write(out, id, RCONPackageCodec.TYPE_RESPONSE_VALUE, response.substring(offset, Math.min(offset + FRAGMENT_SIZE, response.length())));
+                    }
+                } else {
+                    emptyPackages.incrementAndGet();
+                    if(mirrorEmptyPackages) {
+                        write(out, id, RCONPackageCodec.TYPE_RESPONSE_VALUE, "");
+                    }
+                }
+            }
+        }
+
+        private static void write(OutputStream out, int id, int type, String body) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(RCONPackageCodec.encodedSize(body));
+            RCONPackageCodec.encode(id, type, body, buffer);
+            out.write(buffer.array(), 0, buffer.position());
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,281 @@
+package de.angermueller.factorio.service;
+
+import de.angermueller.factorio.domain.FactorioMetric;
+import de.angermueller.factorio.domain.ItemRegistry;
+import de.angermueller.factorio.event.CollectorStateEvent;
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository;
+import de.angermueller.factorio.repository.FactorioTimeSeriesRepository.Resolution;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the collector against fake servers, some of them healthy, some slow and some failing, and drives the
+ * scheduler by hand.
+ */
+class ScheduledCollectorTest {
+
+    private static final long INTERVAL_MILLIS = 50L;
+    private static final long SLOW_MILLIS = 1000L;
+    private static final long RUN_MILLIS = 3000L;
+    private static final int ITEM_ID = ItemRegistry.idOf("collector-test-item");
+
+    @Test
+    void slowAndFailingServersDontAffectHealthyOnes() throws InterruptedException {
+        final Map<String, FakeClient> clients = new LinkedHashMap<>();
+        clients.put("healthy-1", new FakeClient(0L, null));
+        clients.put("healthy-2", new FakeClient(0L, null));
+        clients.put("slow-1", new FakeClient(SLOW_MILLIS, null));
+        clients.put("slow-2", new FakeClient(SLOW_MILLIS, null));
+        clients.put("unreachable", new FakeClient(0L, new IOException("Connection refused")));
+        clients.put("broken", new FakeClient(0L, new IllegalStateException("Unexpected response")));
+        clients.put("slow-unreachable", new FakeClient(SLOW_MILLIS, new IOException("Read timed out")));
+        final FactorioServerRegistry registry = new FactorioServerRegistry();
+        final Map<String, RecordingRepository> repositories = new LinkedHashMap<>();
+        for (Map.Entry<String, FakeClient> client : clients.entrySet()) {
+            final RecordingRepository repository = new RecordingRepository(client.getKey());
+            repositories.put(client.getKey(), repository);
+            registry.register(new FactorioServer(client.getKey(), client.getValue(), Map.of(StatisticSource.PLAYER_ITEMS, repository)));
+        }
+        final Map<String, CollectorStateEvent.State> states = new ConcurrentHashMap<>();
+        final ScheduledCollectorImpl collector = new ScheduledCollectorImpl(registry, event -> {
+            final CollectorStateEvent stateEvent = (CollectorStateEvent) event;
+            states.put(stateEvent.getServer(), stateEvent.getState());
+        }, clients.size());
+        collector.setMinIntervalMillis(INTERVAL_MILLIS);
+        collector.setMaxIntervalMillis(INTERVAL_MILLIS);
+        collector.setInitialBackoffMillis(INTERVAL_MILLIS);
+        collector.setMaxBackoffMillis(INTERVAL_MILLIS);
+        try {
+            final long end = System.currentTimeMillis() + RUN_MILLIS;
+            while (System.currentTimeMillis() < end) {
+                collector.runCollection();
+                Thread.sleep(10L);
+            }
+            // Let the quick collections started last finish storing
+            Thread.sleep(200L);
+        } finally {
+            collector.close();
+        }
+
+        for (Map.Entry<String, FakeClient> entry : clients.entrySet()) {
+            assertEquals(1, entry.getValue().maxInFlight.get(), entry.getKey() + " collected concurrently");
+        }
+        for (String name : List.of("healthy-1", "healthy-2")) {
+            final FakeClient client = clients.get(name);
+            final List<Long> stored = repositories.get(name).ticks;
+            assertTrue(client.collections.get() >= RUN_MILLIS / INTERVAL_MILLIS / 4, name + " only collected " + client.collections.get() + " times");
+            assertEquals(client.collections.get(), stored.size(), name + " rounds not stored");
+            for (int i = 0; i < stored.size(); i++) {
+                assertEquals(60L * (i + 1), stored.get(i), name + " stored round " + i);
+            }
+            assertTrue(client.maxGapMillis() < SLOW_MILLIS / 2, name + " waited " + client.maxGapMillis() + " ms between collections");
+            assertEquals(CollectorStateEvent.State.RUNNING, states.get(name));
+        }
+        for (String name : List.of("slow-1", "slow-2")) {
+            final int collections = clients.get(name).collections.get();
+            assertTrue(collections >= 2 && collections <= RUN_MILLIS / SLOW_MILLIS + 1, name + " collected " + collections + " times");
+            // The collection still sleeping when the collector closed didn't return anything
+            assertTrue(repositories.get(name).ticks.size() >= collections - 1);
+        }
+        for (String name : List.of("unreachable", "broken", "slow-unreachable")) {
+            assertTrue(clients.get(name).collections.get() >= 2, name + " not retried");
+            assertTrue(repositories.get(name).ticks.isEmpty());
+            assertEquals(CollectorStateEvent.State.UNREACHABLE, states.get(name));
+        }
+    }
+
+    @Test
+    void resentSamplesAreSkippedAndEarlierTicksStored() throws InterruptedException {
+        final ScriptedClient buffered = new ScriptedClient(true);
+        buffered.round(1L, 1L, 60L, 2L, 120L, 3L, 180L);
+        // The response of the last drain got lost, the game sends its samples again
+        buffered.round(1L, 2L, 120L, 3L, 180L, 4L, 240L);
+        // An earlier save was loaded, the modules were installed again and count from the start
+        buffered.round(2L, 1L, 30L, 2L, 90L);
+        buffered.round(2L, 3L, 150L, 4L, 210L);
+        buffered.round(2L, 4L, 210L, 5L, 270L);
+        final ScriptedClient unbuffered = new ScriptedClient(false);
+        unbuffered.round(1L, 0L, 600L);
+        unbuffered.round(1L, 0L, 660L);
+        // Restarted on an earlier save, without anything to tell
+        unbuffered.round(1L, 0L, 60L);
+        unbuffered.round(1L, 0L, 120L);
+        final FactorioServerRegistry registry = new FactorioServerRegistry();
+        final RecordingRepository bufferedRepository = new RecordingRepository("buffered");
+        final RecordingRepository unbufferedRepository = new RecordingRepository("unbuffered");
+        registry.register(new FactorioServer("buffered", buffered, Map.of(StatisticSource.PLAYER_ITEMS, bufferedRepository)));
+        registry.register(new FactorioServer("unbuffered", unbuffered, Map.of(StatisticSource.PLAYER_ITEMS, unbufferedRepository)));
+        final ScheduledCollectorImpl collector = new ScheduledCollectorImpl(registry, event -> {
+        }, 2);
+        collector.setMinIntervalMillis(0L);
+        collector.setMaxIntervalMillis(0L);
+        collector.setDrainIntervalMillis(0L);
+        try {
+            final long end = System.currentTimeMillis() + RUN_MILLIS;
+            while ((!buffered.rounds.isEmpty() || !unbuffered.rounds.isEmpty()) && System.currentTimeMillis() < end) {
+                collector.runCollection();
+                Thread.sleep(5L);
+            }
+            Thread.sleep(200L);
+        } finally {
+            collector.close();
+        }
+
+        assertEquals(List.of(60L, 120L, 180L, 240L, 30L, 90L, 150L, 210L, 270L), bufferedRepository.ticks);
+        assertEquals(List.of(600L, 660L, 60L, 120L), unbufferedRepository.ticks);
+    }
+
+    /**
+     * Answers every collection with the next sample after the given delay, or fails with the given exception.
+     */
+    private static class FakeClient extends FactorioClient {
+
+        private final long delayMillis;
+        private final Exception failure;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private final AtomicInteger collections = new AtomicInteger();
+        private final AtomicLong gameTick = new AtomicLong();
+        private final List<Long> collectedNanos = new CopyOnWriteArrayList<>();
+
+        FakeClient(long delayMillis, Exception failure) {
+            super(command -> {
+                throw new IOException("Not connected");
+            });
+            this.delayMillis = delayMillis;
+            this.failure = failure;
+        }
+
+        @Override
+        public List<CollectionResult> collect() throws IOException {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                collections.incrementAndGet();
+                collectedNanos.add(System.nanoTime());
+                if(delayMillis > 0L) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if(failure instanceof IOException e) {
+                    throw e;
+                } else if(failure instanceof RuntimeException e) {
+                    throw e;
+                }
+                final long tick = gameTick.addAndGet(60L);
+                return List.of(new CollectionResult(false, tick, tick, true, List.of(new SourceCounters(StatisticSource.PLAYER_ITEMS,
+                        new String[]{"collector-test-item"}, new int[]{ITEM_ID}, new long[]{tick}, new long[]{2 * tick}))));
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        long maxGapMillis() {
+            long max = 0L;
+            for (int i = 1; i < collectedNanos.size(); i++) {
+                max = Math.max(max, collectedNanos.get(i) - collectedNanos.get(i - 1));
+            }
+            return max / 1_000_000L;
+        }
+
+    }
+
+    /**
+     * Answers the collections with the given rounds of samples, nothing once they are used up.
+     */
+    private static class ScriptedClient extends FactorioClient {
+
+        private final boolean buffered;
+        private final Queue<Round> rounds = new ConcurrentLinkedQueue<>();
+        private volatile long scriptInstalls = 0L;
+
+        ScriptedClient(boolean buffered) {
+            super(command -> {
+                throw new IOException("Not connected");
+            });
+            this.buffered = buffered;
+        }
+
+        /**
+         * @param samplesAndTicks Pairs of sample number and game tick
+         */
+        void round(long scriptInstalls, long... samplesAndTicks) {
+            rounds.add(new Round(scriptInstalls, samplesAndTicks));
+        }
+
+        @Override
+        public boolean isBuffered() {
+            return buffered;
+        }
+
+        @Override
+        public long getScriptInstalls() {
+            return scriptInstalls;
+        }
+
+        @Override
+        public List<CollectionResult> collect() {
+            final Round round = rounds.poll();
+            if(round == null) {
+                return List.of();
+            }
+            scriptInstalls = round.scriptInstalls();
+            final List<CollectionResult> results = new ArrayList<>();
+            for (int i = 0; i < round.samplesAndTicks().length; i += 2) {
+                final long tick = round.samplesAndTicks()[i + 1];
+                results.add(new CollectionResult(false, tick, i, true, round.samplesAndTicks()[i], List.of(new SourceCounters(StatisticSource.PLAYER_ITEMS,
+                        new String[]{"collector-test-item"}, new int[]{ITEM_ID}, new long[]{tick}, new long[]{2 * tick}))));
+            }
+            return results;
+        }
+
+        private record Round(long scriptInstalls, long[] samplesAndTicks) {
+
+        }
+
+    }
+
+    private static class RecordingRepository implements FactorioTimeSeriesRepository {
+
+        private final String seriesName;
+        private final List<Long> ticks = new CopyOnWriteArrayList<>();
+
+        RecordingRepository(String seriesName) {
+            this.seriesName = seriesName;
+        }
+
+        @Override
+        public String getSeriesName() {
+            return seriesName;
+        }
+
+        @Override
+        public Set<? extends Resolution> getSupportedResolutions() {
+            return Set.of();
+        }
+
+        @Override
+        public void store(FactorioMetric metric) {
+            ticks.add(metric.getGameTick());
+        }
+
+        @Override
+        public List<FactorioMetric> retrieve(Resolution resolution, Long afterGameTick, Long untilGameTick, long maxResults) {
+            return List.of();
+        }
+
+    }
+
+}